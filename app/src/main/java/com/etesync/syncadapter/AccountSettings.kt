@@ -84,6 +84,53 @@ constructor(internal val context: Context, internal val account: Account) {
     val isLegacy: Boolean
         get() = authToken != null
 
+    var syncConcurrency: Int
+        get() = accountManager.getUserData(account, KEY_SYNC_CONCURRENCY)?.toIntOrNull()?.coerceAtLeast(1) ?: DEFAULT_SYNC_CONCURRENCY
+        set(concurrency) = accountManager.setUserData(account, KEY_SYNC_CONCURRENCY, if (concurrency == DEFAULT_SYNC_CONCURRENCY) null else concurrency.toString())
+
+    var fetchChunkBounds: IntRange
+        get() = getChunkBounds(KEY_FETCH_CHUNK_BOUNDS, DEFAULT_FETCH_CHUNK_BOUNDS)
+        set(bounds) = setChunkBounds(KEY_FETCH_CHUNK_BOUNDS, bounds, DEFAULT_FETCH_CHUNK_BOUNDS)
+
+    var pushChunkBounds: IntRange
+        get() = getChunkBounds(KEY_PUSH_CHUNK_BOUNDS, DEFAULT_PUSH_CHUNK_BOUNDS)
+        set(bounds) = setChunkBounds(KEY_PUSH_CHUNK_BOUNDS, bounds, DEFAULT_PUSH_CHUNK_BOUNDS)
+
+    private fun getChunkBounds(key: String, default: IntRange): IntRange {
+        val parts = accountManager.getUserData(account, key)?.split(':') ?: return default
+        val min = parts.getOrNull(0)?.toIntOrNull()
+        val max = parts.getOrNull(1)?.toIntOrNull()
+        return if (min != null && max != null && min >= 1 && max >= min) min..max else default
+    }
+
+    private fun setChunkBounds(key: String, bounds: IntRange, default: IntRange) {
+        accountManager.setUserData(account, key, if (bounds == default) null else "${bounds.first}:${bounds.last}")
+    }
+
+    var applyBatchSize: Int
+        get() = accountManager.getUserData(account, KEY_APPLY_BATCH_SIZE)?.toIntOrNull() ?: DEFAULT_APPLY_BATCH_SIZE
+        set(size) = accountManager.setUserData(account, KEY_APPLY_BATCH_SIZE, if (size == DEFAULT_APPLY_BATCH_SIZE) null else size.toString())
+
+    var cacheTombstoneMaxAgeDays: Int
+        get() = accountManager.getUserData(account, KEY_CACHE_TOMBSTONE_MAX_AGE)?.toIntOrNull() ?: DEFAULT_CACHE_TOMBSTONE_MAX_AGE_DAYS
+        set(days) = accountManager.setUserData(account, KEY_CACHE_TOMBSTONE_MAX_AGE, if (days == DEFAULT_CACHE_TOMBSTONE_MAX_AGE_DAYS) null else days.toString())
+
+    var cacheItemStore: String
+        get() = accountManager.getUserData(account, KEY_CACHE_ITEM_STORE) ?: EtebaseItemStore.TYPE_FILES
+        set(type) = accountManager.setUserData(account, KEY_CACHE_ITEM_STORE, if (type == EtebaseItemStore.TYPE_FILES) null else type)
+
+    var cacheCompactedAt: Long
+        get() = accountManager.getUserData(account, KEY_CACHE_COMPACTED_AT)?.toLongOrNull() ?: 0
+        set(time) = accountManager.setUserData(account, KEY_CACHE_COMPACTED_AT, time.toString())
+
+    var syncBackoff: String?
+        get() = accountManager.getUserData(account, KEY_SYNC_BACKOFF)
+        set(state) = accountManager.setUserData(account, KEY_SYNC_BACKOFF, state)
+
+    var serverBackoff: String?
+        get() = accountManager.getUserData(account, KEY_SERVER_BACKOFF)
+        set(state) = accountManager.setUserData(account, KEY_SERVER_BACKOFF, state)
+
     // CalDAV settings
 
     var manageCalendarColors: Boolean
@@ -230,6 +277,61 @@ constructor(internal val context: Context, internal val account: Account) {
         // sync on WiFi only (default: false)
         private val KEY_WIFI_ONLY_SSID = "wifi_only_ssid"  // restrict sync to specific WiFi SSID
 
+        /**
+         * Number of collections (of one type) that are synchronized at the same time
+         * value = null            default value (DEFAULT_SYNC_CONCURRENCY)
+         * 1                       one after another
+         */
+        private val KEY_SYNC_CONCURRENCY = "sync_concurrency"
+        private val DEFAULT_SYNC_CONCURRENCY = 2
+
+        /**
+         * Bounds of the number of items fetched / pushed per request, which adapts within them
+         * value = null            default value (DEFAULT_FETCH_CHUNK_BOUNDS / DEFAULT_PUSH_CHUNK_BOUNDS)
+         * "min:max"               e.g. "10:500"
+         */
+        private val KEY_FETCH_CHUNK_BOUNDS = "fetch_chunk_bounds"
+        private val DEFAULT_FETCH_CHUNK_BOUNDS = 10..500
+        private val KEY_PUSH_CHUNK_BOUNDS = "push_chunk_bounds"
+        private val DEFAULT_PUSH_CHUNK_BOUNDS = 5..200
+
+        /**
+         * Number of remote items committed to the provider (and recorded in the sync checkpoint) at once. A
+         * fetched page is split into batches of this size: fewer, bigger transactions apply a page faster,
+         * smaller ones leave less to apply again after an interrupted sync.
+         * value = null            default value (DEFAULT_APPLY_BATCH_SIZE)
+         * <= 0 (0)                one batch per page
+         */
+        private val KEY_APPLY_BATCH_SIZE = "apply_batch_size"
+        private val DEFAULT_APPLY_BATCH_SIZE = 50
+
+        /**
+         * Age [in days] after which deleted items are removed from the local cache
+         * value = null            default value (DEFAULT_CACHE_TOMBSTONE_MAX_AGE_DAYS)
+         * < 0 (-1)                never
+         */
+        private val KEY_CACHE_TOMBSTONE_MAX_AGE = "cache_tombstone_max_age"
+        private val DEFAULT_CACHE_TOMBSTONE_MAX_AGE_DAYS = 90
+
+        /**
+         * How the local cache stores the items of the collections
+         * value = null            a file per item (EtebaseItemStore.TYPE_FILES)
+         * "packed"                a pack file per collection (EtebaseItemStore.TYPE_PACKED)
+         */
+        private val KEY_CACHE_ITEM_STORE = "cache_item_store"
+
+        private val KEY_CACHE_COMPACTED_AT = "cache_compacted_at"  // time of the last compaction of the local cache
+
+        /**
+         * Backoff after temporary sync failures of the account / of its server, kept by SyncBackoff so it
+         * survives restarts of the app
+         * value = null            no failures
+         * "failures ..."          (account) the state, see SyncBackoff
+         * "host failures ..."     (server) the host followed by the state of the server
+         */
+        private val KEY_SYNC_BACKOFF = "sync_backoff"
+        private val KEY_SERVER_BACKOFF = "server_backoff"
+
         /**
          * Time range limitation to the past [in days]
          * value = null            default value (DEFAULT_TIME_RANGE_PAST_DAYS)
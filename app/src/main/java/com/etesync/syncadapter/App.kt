@@ -92,6 +92,14 @@ class App : Application() {
                 TaskProviderHandling.updateTaskSync(this@App, it)
             }
         }
+
+        EtebaseCacheWarmUp.schedule(this)
+    }
+
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        EtebaseLocalCache.onTrimMemory(level)
+        EtebaseCacheWarmUp.onTrimMemory(level)
     }
 
     override fun attachBaseContext(base: Context) {
@@ -43,7 +43,6 @@ public class Constants {
     public static final String PRODID_BASE = "-//EteSync//" + BuildConfig.APPLICATION_ID + "/" + BuildConfig.VERSION_NAME;
 
     public static final int DEFAULT_SYNC_INTERVAL = 4 * 3600;  // 4 hours
-    public static final long DEFAULT_RETRY_DELAY = 30 * 60; // 30 minutes
 
     public final static String KEY_ACCOUNT = "account",
             KEY_COLLECTION_INFO = "collectionInfo";
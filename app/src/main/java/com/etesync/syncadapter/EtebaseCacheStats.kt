@@ -0,0 +1,100 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter
+
+/**
+ * Keeps the durations of the last [capacity] operations to report latency percentiles.
+ */
+internal class LatencyRecorder(private val capacity: Int = 512) {
+    private val samples = LongArray(capacity)
+    private var count = 0
+    private var next = 0
+
+    @Synchronized
+    fun record(nanos: Long) {
+        samples[next] = nanos
+        next = (next + 1) % capacity
+        if (count < capacity) {
+            count++
+        }
+    }
+
+    inline fun <R> measure(block: () -> R): R {
+        val started = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            record(System.nanoTime() - started)
+        }
+    }
+
+    @Synchronized
+    fun snapshot(): LatencyStats {
+        if (count == 0) {
+            return LatencyStats(0, 0, 0, 0)
+        }
+        val sorted = samples.copyOf(count).also { it.sort() }
+        fun percentile(p: Int) = sorted[Math.min(count - 1, count * p / 100)] / 1000
+        return LatencyStats(count, percentile(50), percentile(90), percentile(99))
+    }
+}
+
+/**
+ * Percentiles (in microseconds) of the last [samples] operations.
+ */
+data class LatencyStats(val samples: Int, val p50: Long, val p90: Long, val p99: Long) {
+    override fun toString(): String {
+        return if (samples == 0) "no samples" else "p50 $p50 µs, p90 $p90 µs, p99 $p99 µs ($samples samples)"
+    }
+}
+
+data class CollectionCacheStats(
+        val colUid: String,
+        val items: Int,
+        val tombstones: Int,
+        val bytes: Long,
+        /** time since the collection's stoken was last saved [ms], or null if it never was */
+        val stokenAge: Long?
+)
+
+data class CacheStats(
+        val collections: List<CollectionCacheStats>,
+        /** time since the account's stoken was last saved [ms], or null if it never was */
+        val stokenAge: Long?,
+        val memoryCacheHits: Int,
+        val memoryCacheMisses: Int,
+        val readLatency: LatencyStats,
+        val writeLatency: LatencyStats
+) {
+    val bytes: Long
+        get() = collections.sumOf { it.bytes }
+
+    val items: Int
+        get() = collections.sumOf { it.items }
+
+    val tombstones: Int
+        get() = collections.sumOf { it.tombstones }
+
+    fun dump(report: StringBuilder) {
+        report.append("  Cache: ").append(bytes).append(" bytes, ").append(items).append(" items (")
+                .append(tombstones).append(" deleted), stoken age: ").append(formatAge(stokenAge)).append("\n")
+        report.append("  Memory cache: ").append(memoryCacheHits).append(" hits, ").append(memoryCacheMisses).append(" misses\n")
+        report.append("  Disk reads: ").append(readLatency).append("\n")
+        report.append("  Disk writes: ").append(writeLatency).append("\n")
+        for (col in collections.sortedByDescending { it.bytes }) {
+            report.append("    [").append(col.colUid).append("]: ").append(col.bytes).append(" bytes, ")
+                    .append(col.items).append(" items (").append(col.tombstones).append(" deleted), stoken age: ")
+                    .append(formatAge(col.stokenAge)).append("\n")
+        }
+    }
+
+    private fun formatAge(age: Long?): String {
+        return if (age == null) "never saved" else "${age / 1000} s"
+    }
+}
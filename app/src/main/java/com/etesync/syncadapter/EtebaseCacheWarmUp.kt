@@ -0,0 +1,120 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter
+
+import android.accounts.AccountManager
+import android.app.ActivityManager
+import android.content.ComponentCallbacks2
+import android.content.Context
+import com.etesync.syncadapter.log.Logger
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.logging.Level
+
+/**
+ * Loads what the account and collection screens need first (the etebase session, the decrypted collection list and
+ * the item indexes of the recently viewed collections) into memory in the background, without any network traffic.
+ *
+ * Runs after the app was started and after syncs. A run is skipped when memory is low and cancelled on memory
+ * pressure (see [onTrimMemory]).
+ */
+object EtebaseCacheWarmUp {
+    private val executor = Executors.newSingleThreadExecutor()
+    private var pending: Future<*>? = null
+    /** cancellation signal of the pending run */
+    private var pendingCancelled: AtomicBoolean? = null
+
+    fun schedule(context: Context) {
+        val appContext = context.applicationContext
+        synchronized(this) {
+            if (pending?.isDone == false) {
+                return
+            }
+            val cancelled = AtomicBoolean()
+            pendingCancelled = cancelled
+            pending = executor.submit(Runnable {
+                warmUp(appContext, cancelled)
+            })
+        }
+    }
+
+    /**
+     * Stops the pending run at the next account or collection. It isn't interrupted, as that would close the files
+     * (like item packs) it's reading.
+     */
+    fun cancel() {
+        synchronized(this) {
+            pendingCancelled?.set(true)
+            pending?.cancel(false)
+            pending = null
+            pendingCancelled = null
+        }
+    }
+
+    fun onTrimMemory(level: Int) {
+        if (level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            cancel()
+        }
+    }
+
+    private fun warmUp(context: Context, cancelled: AtomicBoolean) {
+        val started = System.currentTimeMillis()
+        val accountManager = AccountManager.get(context)
+        for (account in accountManager.getAccountsByType(App.accountType)) {
+            if (shouldStop(context, cancelled)) {
+                return
+            }
+            try {
+                val settings = AccountSettings(context, account)
+                if (settings.isLegacy) {
+                    continue
+                }
+
+                val etebaseLocalCache = EtebaseLocalCache.getInstance(context, account.name)
+                val colMgr = EtebaseLocalCache.getEtebase(context, settings).collectionManager
+                val collections = etebaseLocalCache.collectionList(colMgr)
+
+                for (colUid in etebaseLocalCache.recentCollections()) {
+                    if (shouldStop(context, cancelled)) {
+                        return
+                    }
+                    val cachedCollection = collections.firstOrNull { it.col.uid == colUid } ?: continue
+                    val itemMgr = colMgr.getItemManager(cachedCollection.col)
+                    etebaseLocalCache.itemInfoList(itemMgr, colUid)
+                }
+            } catch (e: Exception) {
+                Logger.log.log(Level.WARNING, "Couldn't warm up cache of $account", e)
+            }
+        }
+        Logger.log.fine("Warmed up caches in ${System.currentTimeMillis() - started} ms")
+    }
+
+    /**
+     * Whether the run has to stop, because it was cancelled or because the system or the app is low on memory right
+     * now. Memory pressure later on cancels the run through [onTrimMemory].
+     */
+    private fun shouldStop(context: Context, cancelled: AtomicBoolean): Boolean {
+        if (cancelled.get()) {
+            Logger.log.fine("Cache warm-up cancelled")
+            return true
+        }
+
+        val activityManager = context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
+        val memoryInfo = ActivityManager.MemoryInfo()
+        activityManager.getMemoryInfo(memoryInfo)
+        val runtime = Runtime.getRuntime()
+        val heapFree = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory())
+        if (memoryInfo.lowMemory || heapFree < runtime.maxMemory() / 4) {
+            Logger.log.fine("Low on memory, skipping cache warm-up")
+            return true
+        }
+        return false
+    }
+}
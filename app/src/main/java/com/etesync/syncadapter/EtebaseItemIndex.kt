@@ -0,0 +1,256 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter
+
+import com.etebase.client.Item
+import com.etesync.syncadapter.log.Logger
+import java.io.File
+import java.io.FileWriter
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.logging.Level
+
+/**
+ * Compact metadata (etag, deleted flag, mtime and a short display summary) of every cached item of a collection,
+ * so changes can be detected and lists shown without loading and decrypting the full cached items every time.
+ *
+ * Only what isn't encrypted in the cached items either (uid, etag and deleted flag) is persisted, as an append-only
+ * log (one "uid etag deleted" line per change, or just "uid" when an item is removed) which is compacted once it
+ * grows too much. The mtime and summary are only kept in memory: they are taken from the items that are stored,
+ * and otherwise decrypted once per process when they are first needed (see [list]). So the first list of a
+ * collection after the app was started decrypts all of its items once (unless [EtebaseCacheWarmUp] did already).
+ */
+internal class EtebaseItemIndex private constructor(private val file: File) {
+    private class Entry(val etag: String, val isDeleted: Boolean)
+
+    internal class Details(val etag: String, val mtime: Long?, val summary: String?)
+
+    private val entries = HashMap<String, Entry>()
+    /** Written by readers too (which only hold the collection's read lock), hence concurrent */
+    private val details = ConcurrentHashMap<String, Details>()
+    private var logLines = 0
+
+    val size: Int
+        get() = entries.size
+
+    /**
+     * Returns the entry of an item, without its mtime and summary unless they are known already.
+     */
+    fun get(itemUid: String): CachedItemInfo? = entries[itemUid]?.let { info(itemUid, it) }
+
+    /**
+     * Returns all of the entries. If [loadItem] is passed, it's used to load the items whose mtime and summary
+     * aren't known yet.
+     */
+    fun list(loadItem: ((String) -> Item?)? = null): List<CachedItemInfo> {
+        return listWithDetails(loadItem?.let { load -> { uid: String -> load(uid)?.let { details(it) } } })
+    }
+
+    /**
+     * Same as [list], but [loadDetails] returns the mtime and summary of an item instead of the item.
+     */
+    internal fun listWithDetails(loadDetails: ((String) -> Details?)?): List<CachedItemInfo> {
+        return entries.map { (uid, entry) ->
+            if (loadDetails != null && details[uid]?.etag != entry.etag) {
+                loadDetails(uid)?.let { details[uid] = it }
+            }
+            info(uid, entry)
+        }
+    }
+
+    private fun info(uid: String, entry: Entry): CachedItemInfo {
+        // Details of another revision of the item don't count
+        val details = details[uid]?.takeIf { it.etag == entry.etag }
+        return CachedItemInfo(uid, entry.etag, entry.isDeleted, details?.mtime, details?.summary)
+    }
+
+    fun set(item: Item) {
+        setAll(listOf(item))
+    }
+
+    /**
+     * Updates the entries of [items], persisting all of the changes with a single append.
+     */
+    fun setAll(items: List<Item>) {
+        val lines = ArrayList<String>()
+        for (item in items) {
+            val entry = Entry(item.etag, item.isDeleted)
+            details[item.uid] = details(item)
+            val previous = entries.put(item.uid, entry)
+            if (previous == null || previous.etag != entry.etag || previous.isDeleted != entry.isDeleted) {
+                lines.add(line(item.uid, entry))
+            }
+        }
+        if (lines.isNotEmpty()) {
+            append(lines)
+        }
+    }
+
+    fun unset(itemUid: String) {
+        unsetAll(listOf(itemUid))
+    }
+
+    fun unsetAll(itemUids: List<String>) {
+        for (uid in itemUids) {
+            details.remove(uid)
+        }
+        val lines = itemUids.filter { entries.remove(it) != null }
+        if (lines.isNotEmpty()) {
+            append(lines)
+        }
+    }
+
+    /**
+     * Rewrites the log with just the current entries.
+     */
+    fun compact() {
+        if (logLines > entries.size) {
+            write()
+        }
+    }
+
+    private fun line(uid: String, entry: Entry): String {
+        return uid + SEPARATOR + entry.etag + SEPARATOR + (if (entry.isDeleted) "1" else "0")
+    }
+
+    private fun append(lines: List<String>) {
+        if (logLines + lines.size > 2 * entries.size + COMPACT_SLACK) {
+            write()
+            return
+        }
+
+        try {
+            file.parentFile?.mkdirs()
+            FileWriter(file, true).use { writer ->
+                for (line in lines) {
+                    writer.write(line + "\n")
+                }
+            }
+            logLines += lines.size
+        } catch (e: IOException) {
+            Logger.log.log(Level.WARNING, "Couldn't update item index, it will be rebuilt", e)
+            file.delete()
+        }
+    }
+
+    private fun write() {
+        val tmp = File(file.path + ".tmp")
+        try {
+            file.parentFile?.mkdirs()
+            FileWriter(tmp).use { writer ->
+                for ((uid, entry) in entries) {
+                    writer.write(line(uid, entry) + "\n")
+                }
+            }
+            if (!tmp.renameTo(file)) {
+                throw IOException("Couldn't rename $tmp")
+            }
+            logLines = entries.size
+        } catch (e: IOException) {
+            Logger.log.log(Level.WARNING, "Couldn't write item index, it will be rebuilt", e)
+            tmp.delete()
+            file.delete()
+        }
+    }
+
+    companion object {
+        private const val SEPARATOR = "\t"
+        private const val COMPACT_SLACK = 64
+        private const val MAX_SUMMARY_LENGTH = 128
+
+        /**
+         * Loads the index from [file], or returns null if it doesn't exist (or can't be read).
+         */
+        fun load(file: File): EtebaseItemIndex? {
+            if (!file.exists()) {
+                return null
+            }
+
+            val ret = EtebaseItemIndex(file)
+            var legacyLines = false
+            try {
+                file.forEachLine { line ->
+                    val parts = line.split(SEPARATOR)
+                    when (parts.size) {
+                        1 -> ret.entries.remove(parts[0])
+                        3 -> ret.entries[parts[0]] = Entry(parts[1], parts[2] == "1")
+                        5 -> {
+                            // Earlier versions also stored the mtime and summary, which are dropped
+                            ret.entries[parts[0]] = Entry(parts[1], parts[2] == "1")
+                            legacyLines = true
+                        }
+                        else -> Logger.log.warning("Ignoring malformed item index line in $file")
+                    }
+                    ret.logLines++
+                }
+            } catch (e: IOException) {
+                Logger.log.log(Level.WARNING, "Couldn't read item index $file", e)
+                return null
+            }
+            if (legacyLines) {
+                ret.write()
+            }
+            return ret
+        }
+
+        /**
+         * Creates a new index at [file] out of the items that are already cached.
+         */
+        fun rebuild(file: File, items: List<Item>): EtebaseItemIndex {
+            val ret = EtebaseItemIndex(file)
+            for (item in items) {
+                ret.entries[item.uid] = Entry(item.etag, item.isDeleted)
+                ret.details[item.uid] = details(item)
+            }
+            ret.write()
+            return ret
+        }
+
+        private fun details(item: Item): Details {
+            val summary = if (item.isDeleted) null else summary(item.contentString)
+            return Details(item.etag, item.meta.mtime, summary)
+        }
+
+        /**
+         * The name of a vCard or the summary of an iCalendar object, as shown in item lists.
+         */
+        internal fun summary(content: String): String? {
+            // Unfold the lines first, and make sure that a property on the first line is preceded by a line break too
+            val unfolded = "\n" + content.replace(Regex("\r?\n[ \t]"), "")
+            for (prefix in arrayOf("\nFN", "\nSUMMARY")) {
+                var start = unfolded.indexOf(prefix, ignoreCase = true)
+                while (start >= 0) {
+                    val valueStart = start + prefix.length
+                    // Skip longer property names (FN vs. FNAME), but allow parameters (FN;CHARSET=...)
+                    if (valueStart < unfolded.length && (unfolded[valueStart] == ':' || unfolded[valueStart] == ';')) {
+                        val colon = unfolded.indexOf(':', valueStart)
+                        if (colon < 0) {
+                            break
+                        }
+                        var end = unfolded.indexOf('\n', colon)
+                        if (end < 0) {
+                            end = unfolded.length
+                        }
+                        return unfolded.substring(colon + 1, end)
+                                .replace(Regex("\\\\[nN]"), " ")
+                                .replace(Regex("\\\\([,;\\\\])"), "$1")
+                                .replace(Regex("\\s+"), " ")
+                                .trim()
+                                .take(MAX_SUMMARY_LENGTH)
+                                .ifEmpty { null }
+                    }
+                    start = unfolded.indexOf(prefix, valueStart, ignoreCase = true)
+                }
+            }
+            return null
+        }
+    }
+}
+
+data class CachedItemInfo(val uid: String, val etag: String, val isDeleted: Boolean, val mtime: Long?, val summary: String?)
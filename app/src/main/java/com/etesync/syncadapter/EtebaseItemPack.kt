@@ -0,0 +1,275 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter
+
+import com.etesync.syncadapter.log.Logger
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.logging.Level
+import java.util.zip.CRC32
+
+/**
+ * An append-only pack of serialized items, read through memory mappings of the file.
+ *
+ * The file starts with [HEADER], followed by records of "uid length, data length, uid, data, CRC32 of all of the
+ * former", where a data length of -1 marks the item as removed. The offset of the newest record of every item is
+ * kept in memory (built by scanning and checking the pack when it's opened). A torn record at the end of the file,
+ * left by a crash while appending (which may also be zero-filled), fails the check and is cut off when the pack is
+ * opened. Once more than half of the file are overwritten or removed records, [compact] rewrites it.
+ *
+ * The file is mapped in segments of [segmentSize], so it may grow beyond what a single mapping can address.
+ */
+internal class EtebaseItemPack(private val file: File, private val segmentSize: Int = SEGMENT_SIZE) {
+    private class Entry(val offset: Long, val length: Int, val recordLength: Long)
+
+    private val entries = HashMap<String, Entry>()
+    private var size: Long = 0
+    private var garbage: Long = 0
+
+    private var channel: FileChannel? = null
+    private val segments = ArrayList<MappedByteBuffer>()
+    private var mappedSize: Long = 0
+
+    init {
+        open()
+    }
+
+    @Synchronized
+    fun read(itemUid: String): ByteArray? {
+        val entry = entries[itemUid] ?: return null
+        return read(entry)
+    }
+
+    /**
+     * Returns the data of all of the items, in file order (so the file is read sequentially).
+     */
+    @Synchronized
+    fun readAll(): List<ByteArray> {
+        return entries.values.sortedBy { it.offset }.map { read(it) }
+    }
+
+    /**
+     * Appends a record per pair (data of null removes the item) and syncs the file once for all of them.
+     */
+    @Synchronized
+    fun writeAll(records: List<Pair<String, ByteArray?>>) {
+        if (records.isEmpty()) {
+            return
+        }
+
+        val header = if (size == 0L) HEADER else ByteArray(0)
+        val encoded = records.map { Pair(it.first, encode(it.first, it.second)) }
+        val buffer = ByteBuffer.allocate(header.size + encoded.sumOf { it.second.size })
+        buffer.put(header)
+        for ((_, record) in encoded) {
+            buffer.put(record)
+        }
+        buffer.flip()
+
+        val channel = channel()
+        channel.position(size)
+        while (buffer.hasRemaining()) {
+            channel.write(buffer)
+        }
+        channel.force(false)
+
+        var offset = size + header.size
+        for ((i, pair) in encoded.withIndex()) {
+            val (itemUid, record) = pair
+            val data = records[i].second
+            val replaced = if (data != null) {
+                entries.put(itemUid, Entry(dataOffset(offset, itemUid), data.size, record.size.toLong()))
+            } else {
+                garbage += record.size
+                entries.remove(itemUid)
+            }
+            if (replaced != null) {
+                garbage += replaced.recordLength
+            }
+            offset += record.size
+        }
+        size = offset
+
+        if (garbage > COMPACT_MIN_GARBAGE && garbage > size / 2) {
+            compact()
+        }
+    }
+
+    /**
+     * Rewrites the pack with just the current records.
+     */
+    @Synchronized
+    fun compact() {
+        if (garbage == 0L) {
+            return
+        }
+
+        val live = entries.entries.sortedBy { it.value.offset }.map { Pair(it.key, read(it.value)) }
+        val tmp = File(file.path + ".tmp")
+        RandomAccessFile(tmp, "rw").use { out ->
+            out.setLength(0)
+            out.write(HEADER)
+            for ((itemUid, data) in live) {
+                out.write(encode(itemUid, data))
+            }
+            out.fd.sync()
+        }
+        close()
+        if (!tmp.renameTo(file)) {
+            tmp.delete()
+            throw IOException("Couldn't rename $tmp")
+        }
+        open()
+        Logger.log.fine("Compacted $file to $size bytes")
+    }
+
+    @Synchronized
+    fun close() {
+        channel?.close()
+        channel = null
+        segments.clear()
+        mappedSize = 0
+    }
+
+    private fun channel(): FileChannel {
+        channel?.let { return it }
+        file.parentFile?.mkdirs()
+        return RandomAccessFile(file, "rw").channel.also { channel = it }
+    }
+
+    private fun read(entry: Entry): ByteArray {
+        return read(entry.offset, entry.length)
+    }
+
+    /**
+     * Copies [length] bytes at [position] out of the mapped segments, mapping what the pack grew by if needed.
+     */
+    private fun read(position: Long, length: Int): ByteArray {
+        if (position + length > mappedSize) {
+            map(size)
+        }
+        val ret = ByteArray(length)
+        var done = 0
+        while (done < length) {
+            val segmentPosition = position + done
+            val segment = segments[(segmentPosition / segmentSize).toInt()].duplicate()
+            segment.position((segmentPosition % segmentSize).toInt())
+            val count = Math.min(length - done, segment.remaining())
+            segment.get(ret, done, count)
+            done += count
+        }
+        return ret
+    }
+
+    private fun map(until: Long) {
+        // Full segments stay as they are, a partial last one is mapped again with what was appended to it
+        if (segments.isNotEmpty() && segments.last().capacity() < segmentSize) {
+            segments.removeAt(segments.size - 1)
+        }
+        val channel = channel()
+        var start = segments.size.toLong() * segmentSize
+        while (start < until) {
+            val length = Math.min(segmentSize.toLong(), until - start)
+            segments.add(channel.map(FileChannel.MapMode.READ_ONLY, start, length))
+            start += length
+        }
+        mappedSize = until
+    }
+
+    private fun open() {
+        entries.clear()
+        size = 0
+        garbage = 0
+        if (!file.exists()) {
+            return
+        }
+
+        val channel = channel()
+        val fileSize = channel.size()
+        map(fileSize)
+        var offset = 0L
+        try {
+            if (fileSize >= HEADER.size && read(0, HEADER.size).contentEquals(HEADER)) {
+                offset = HEADER.size.toLong()
+            } else if (fileSize > 0) {
+                Logger.log.warning("Unknown pack format of $file, discarding it")
+            }
+
+            while (offset > 0 && fileSize - offset >= RECORD_HEADER_SIZE) {
+                val recordHeader = ByteBuffer.wrap(read(offset, RECORD_HEADER_SIZE))
+                val uidLength = recordHeader.int
+                val dataLength = recordHeader.int
+                if (uidLength < 0 || uidLength > MAX_UID_LENGTH || dataLength < -1) break
+                val recordLength = RECORD_HEADER_SIZE.toLong() + uidLength + Math.max(dataLength, 0) + CRC_SIZE
+                if (recordLength > fileSize - offset || recordLength > Int.MAX_VALUE) break
+
+                val record = read(offset, recordLength.toInt())
+                if (crc(record, record.size - CRC_SIZE) != ByteBuffer.wrap(record, record.size - CRC_SIZE, CRC_SIZE).int) break
+
+                val itemUid = String(record, RECORD_HEADER_SIZE, uidLength, Charsets.UTF_8)
+                val replaced = if (dataLength >= 0) {
+                    entries.put(itemUid, Entry(offset + RECORD_HEADER_SIZE + uidLength, dataLength, recordLength))
+                } else {
+                    garbage += recordLength
+                    entries.remove(itemUid)
+                }
+                if (replaced != null) {
+                    garbage += replaced.recordLength
+                }
+                offset += recordLength
+            }
+        } catch (e: RuntimeException) {
+            Logger.log.log(Level.WARNING, "Couldn't read $file past offset $offset", e)
+        }
+
+        size = offset
+        if (offset < fileSize) {
+            Logger.log.warning("Truncating torn record at the end of $file")
+            segments.clear()
+            mappedSize = 0
+            channel.truncate(offset)
+        }
+    }
+
+    companion object {
+        private val HEADER = "EtePack1".toByteArray(Charsets.US_ASCII)
+        private const val RECORD_HEADER_SIZE = 8
+        private const val CRC_SIZE = 4
+        /** item uids are much shorter, so anything longer is garbage */
+        private const val MAX_UID_LENGTH = 1024
+        private const val SEGMENT_SIZE = 64 * 1024 * 1024
+        private const val COMPACT_MIN_GARBAGE = 256L * 1024
+
+        private fun dataOffset(recordOffset: Long, itemUid: String) =
+                recordOffset + RECORD_HEADER_SIZE + itemUid.toByteArray(Charsets.UTF_8).size
+
+        private fun crc(bytes: ByteArray, length: Int): Int {
+            val crc = CRC32()
+            crc.update(bytes, 0, length)
+            return crc.value.toInt()
+        }
+
+        private fun encode(itemUid: String, data: ByteArray?): ByteArray {
+            val uid = itemUid.toByteArray(Charsets.UTF_8)
+            val buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + uid.size + (data?.size ?: 0) + CRC_SIZE)
+            buffer.putInt(uid.size)
+            buffer.putInt(data?.size ?: -1)
+            buffer.put(uid)
+            if (data != null) {
+                buffer.put(data)
+            }
+            buffer.putInt(crc(buffer.array(), buffer.position()))
+            return buffer.array()
+        }
+    }
+}
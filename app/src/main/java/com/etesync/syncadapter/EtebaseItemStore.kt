@@ -0,0 +1,145 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter
+
+import com.etebase.client.FileSystemCache
+import com.etebase.client.Item
+import com.etebase.client.ItemManager
+import com.etebase.client.exceptions.EtebaseException
+import java.io.File
+
+/**
+ * Where [EtebaseLocalCache] keeps the items of its collections. Collections and stokens always stay in the
+ * [FileSystemCache].
+ *
+ * Implementations don't lock anything themselves beyond keeping their own state consistent; callers hold the
+ * collection's lock (write lock for the modifying methods).
+ */
+internal interface EtebaseItemStore {
+    val type: String
+
+    fun list(itemMgr: ItemManager, colUid: String): List<Item>
+
+    fun get(itemMgr: ItemManager, colUid: String, itemUid: String): Item?
+
+    /**
+     * Stores the [items] of a page or pushed chunk. Only [PackedItemStore] writes them together, with a single sync
+     * of its pack file; [FileSystemItemStore] still writes a file per item.
+     */
+    fun setAll(itemMgr: ItemManager, colUid: String, items: List<Item>)
+
+    fun unsetAll(itemMgr: ItemManager, colUid: String, itemUids: List<String>)
+
+    /**
+     * Reclaims the space of removed or overwritten items, if the store keeps any.
+     */
+    fun compact(colUid: String)
+
+    /**
+     * Drops all of the items of a collection, e.g. before it's unset.
+     */
+    fun removeCollection(itemMgr: ItemManager?, colUid: String)
+
+    companion object {
+        const val TYPE_FILES = "files"
+        const val TYPE_PACKED = "packed"
+    }
+}
+
+/**
+ * One file per item, as laid out by the [FileSystemCache].
+ */
+internal class FileSystemItemStore(private val fsCache: FileSystemCache) : EtebaseItemStore {
+    override val type = EtebaseItemStore.TYPE_FILES
+
+    override fun list(itemMgr: ItemManager, colUid: String): List<Item> {
+        return try {
+            fsCache._unstable_itemList(itemMgr, colUid).toList()
+        } catch (e: EtebaseException) {
+            emptyList()
+        }
+    }
+
+    override fun get(itemMgr: ItemManager, colUid: String, itemUid: String): Item? {
+        // Need the try because the inner call doesn't return null on missing, but an error
+        return try {
+            fsCache.itemGet(itemMgr, colUid, itemUid)
+        } catch (e: EtebaseException) {
+            null
+        }
+    }
+
+    override fun setAll(itemMgr: ItemManager, colUid: String, items: List<Item>) {
+        // The FileSystemCache has no batched write (nor does it sync its files), so there's nothing to group here
+        for (item in items) {
+            fsCache.itemSet(itemMgr, colUid, item)
+        }
+    }
+
+    override fun unsetAll(itemMgr: ItemManager, colUid: String, itemUids: List<String>) {
+        for (itemUid in itemUids) {
+            fsCache.itemUnset(itemMgr, colUid, itemUid)
+        }
+    }
+
+    override fun compact(colUid: String) {
+    }
+
+    override fun removeCollection(itemMgr: ItemManager?, colUid: String) {
+        // Removed along with the collection by the file system cache; when migrating, the items are unset one by one
+        if (itemMgr != null) {
+            unsetAll(itemMgr, colUid, list(itemMgr, colUid).map { it.uid })
+        }
+    }
+}
+
+/**
+ * All of the items of a collection in a single, memory-mapped pack file (see [EtebaseItemPack]), so that listing
+ * a collection is a sequential read instead of a directory scan and a file per item.
+ */
+internal class PackedItemStore(private val colsDir: File) : EtebaseItemStore {
+    override val type = EtebaseItemStore.TYPE_PACKED
+
+    private val packs = HashMap<String, EtebaseItemPack>()
+
+    private fun pack(colUid: String): EtebaseItemPack {
+        synchronized(packs) {
+            return packs.getOrPut(colUid) { EtebaseItemPack(packFile(colUid)) }
+        }
+    }
+
+    private fun packFile(colUid: String) = File(File(colsDir, colUid), "pack")
+
+    override fun list(itemMgr: ItemManager, colUid: String): List<Item> {
+        return pack(colUid).readAll().map { itemMgr.cacheLoad(it) }
+    }
+
+    override fun get(itemMgr: ItemManager, colUid: String, itemUid: String): Item? {
+        return pack(colUid).read(itemUid)?.let { itemMgr.cacheLoad(it) }
+    }
+
+    override fun setAll(itemMgr: ItemManager, colUid: String, items: List<Item>) {
+        pack(colUid).writeAll(items.map { Pair(it.uid, itemMgr.cacheSaveWithContent(it)) })
+    }
+
+    override fun unsetAll(itemMgr: ItemManager, colUid: String, itemUids: List<String>) {
+        pack(colUid).writeAll(itemUids.map { Pair(it, null) })
+    }
+
+    override fun compact(colUid: String) {
+        pack(colUid).compact()
+    }
+
+    override fun removeCollection(itemMgr: ItemManager?, colUid: String) {
+        synchronized(packs) {
+            packs.remove(colUid)
+        }?.close()
+        packFile(colUid).delete()
+    }
+}
@@ -1,18 +1,105 @@
 package com.etesync.syncadapter
 
+import android.content.ComponentCallbacks2
 import android.content.Context
+import android.util.LruCache
 import com.etebase.client.*
 import com.etebase.client.Collection
 import com.etebase.client.exceptions.EtebaseException
 import com.etebase.client.exceptions.UrlParseException
-import okhttp3.OkHttpClient
+import com.etesync.syncadapter.log.Logger
 import java.io.File
+import java.io.IOException
 import java.util.*
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.logging.Level
+import kotlin.concurrent.read
+import kotlin.concurrent.write
 
+/**
+ * Local cache of an account's collections and items.
+ *
+ * All of the methods are thread-safe: the collection list (and the account's stoken) is guarded by a read/write
+ * lock, and the items (and stoken) of every collection by a read/write lock of its own, so syncs of different
+ * collections don't block each other. When both are needed, the collection list lock is taken first.
+ */
 class EtebaseLocalCache private constructor(context: Context, username: String) {
     private val fsCache: FileSystemCache = FileSystemCache.create(context.filesDir.absolutePath, username)
     private val filesDir: File = File(context.filesDir, username)
     private val colsDir: File = File(filesDir, "cols")
+    private val itemIndexes = HashMap<String, EtebaseItemIndex>()
+    private val itemStoreFile: File = File(filesDir, "item_store")
+    private val recentCollectionsFile: File = File(filesDir, "recent_collections")
+
+    /** latencies of item reads and writes that go to the item store (i.e. aren't served from memory) */
+    private val readLatency = LatencyRecorder()
+    private val writeLatency = LatencyRecorder()
+
+    @Volatile
+    private var itemStore: EtebaseItemStore = createItemStore(itemStoreType())
+
+    private val collectionsLock = ReentrantReadWriteLock()
+    /**
+     * Locks of the collections, striped so there isn't a lock left behind for every collection that was ever
+     * cached. Collections sharing a lock just wait for each other's writes. A collection's lock is never taken
+     * while holding that of another one, except by [useItemStore] which takes all of them in order.
+     */
+    private val collectionLocks = Array(COLLECTION_LOCK_STRIPES) { ReentrantReadWriteLock() }
+
+    private fun collectionLock(colUid: String): ReentrantReadWriteLock {
+        return collectionLocks[(colUid.hashCode() and Int.MAX_VALUE) % COLLECTION_LOCK_STRIPES]
+    }
+
+    /**
+     * Decrypted collections and items that were recently read, bounded by their (estimated) size in bytes.
+     * Keys are "c/<colUid>" for collections and "i/<colUid>/<itemUid>" for items.
+     */
+    private val memoryCache = object : LruCache<String, Any>(MEMORY_CACHE_MAX_BYTES) {
+        override fun sizeOf(key: String, value: Any): Int {
+            return when (value) {
+                is CachedItem -> ENTRY_OVERHEAD_BYTES + 2 * value.content.length
+                else -> ENTRY_OVERHEAD_BYTES
+            }
+        }
+    }
+
+    /**
+     * All of the (decrypted) cached collections, including deleted ones. Only replaced with the collection list lock
+     * held, and dropped whenever the collection list changes.
+     */
+    @Volatile
+    private var collectionListCache: List<CachedCollection>? = null
+
+    val memoryCacheHits: Int
+        get() = memoryCache.hitCount()
+
+    val memoryCacheMisses: Int
+        get() = memoryCache.missCount()
+
+    private fun collectionKey(colUid: String) = "c/$colUid"
+
+    private fun itemKey(colUid: String, itemUid: String) = "i/$colUid/$itemUid"
+
+    private fun invalidateCollection(colUid: String) {
+        memoryCache.remove(collectionKey(colUid))
+        val itemPrefix = itemKey(colUid, "")
+        for (key in memoryCache.snapshot().keys) {
+            if (key.startsWith(itemPrefix)) {
+                memoryCache.remove(key)
+            }
+        }
+    }
+
+    fun trimMemory(level: Int) {
+        if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL ||
+                level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            memoryCache.evictAll()
+            collectionListCache = null
+        } else {
+            // Just moderately low on memory, or the UI was hidden
+            memoryCache.trimToSize(memoryCache.maxSize() / 2)
+        }
+    }
 
     private fun getCollectionItemsDir(colUid: String): File {
         val colsDir = File(filesDir, "cols")
@@ -20,83 +107,450 @@ class EtebaseLocalCache private constructor(context: Context, username: String)
         return File(colDir, "items")
     }
 
+    /**
+     * Empty file whose modification time is when the stoken was last saved (the file system cache doesn't keep it).
+     */
+    private fun getStokenMarkerFile(colUid: String?): File {
+        return if (colUid == null) File(filesDir, "stoken_saved") else File(File(colsDir, colUid), "stoken_saved")
+    }
+
+    private fun touchStokenMarker(colUid: String?) {
+        val file = getStokenMarkerFile(colUid)
+        try {
+            if (!file.setLastModified(System.currentTimeMillis())) {
+                file.parentFile?.mkdirs()
+                file.createNewFile()
+            }
+        } catch (e: IOException) {
+            // Only used for statistics
+        }
+    }
+
+    private fun stokenAge(colUid: String?): Long? {
+        val saved = getStokenMarkerFile(colUid).lastModified()
+        return if (saved == 0L) null else Math.max(0, System.currentTimeMillis() - saved)
+    }
+
+    private fun getCollectionItemIndexFile(colUid: String): File {
+        return File(File(colsDir, colUid), "index")
+    }
+
+    /** The etag-only index used by earlier versions, superseded by the item index */
+    private fun getCollectionLegacyEtagIndexFile(colUid: String): File {
+        return File(File(colsDir, colUid), "etags")
+    }
+
+    /**
+     * Has to be called with the collection's lock held (read or write).
+     */
+    private fun getItemIndex(itemMgr: ItemManager, colUid: String): EtebaseItemIndex {
+        // Readers may race to load the index, so loading is serialized per account
+        synchronized(itemIndexes) {
+            itemIndexes[colUid]?.let { return it }
+
+            val file = getCollectionItemIndexFile(colUid)
+            val ret = EtebaseItemIndex.load(file) ?: run {
+                // Decrypts all of the cached items, but only once per collection
+                Logger.log.info("Building item index of collection $colUid")
+                getCollectionLegacyEtagIndexFile(colUid).delete()
+                EtebaseItemIndex.rebuild(file, itemStore.list(itemMgr, colUid))
+            }
+            itemIndexes[colUid] = ret
+            return ret
+        }
+    }
+
+    private fun itemStoreType(): String {
+        return try {
+            itemStoreFile.readText().trim()
+        } catch (e: IOException) {
+            EtebaseItemStore.TYPE_FILES
+        }
+    }
+
+    private fun createItemStore(type: String): EtebaseItemStore {
+        return when (type) {
+            EtebaseItemStore.TYPE_PACKED -> PackedItemStore(colsDir)
+            else -> FileSystemItemStore(fsCache)
+        }
+    }
+
+    /**
+     * Switches the items of all collections to the store of [type] (see [EtebaseItemStore]), migrating the cached
+     * items if it's not the one in use already.
+     *
+     * The items are first copied to the new store, which is only then recorded as the one in use; so if the
+     * migration is interrupted, the old store is still complete and the migration is just done again.
+     */
+    fun useItemStore(colMgr: CollectionManager, type: String) {
+        if (itemStore.type == type) {
+            return
+        }
+
+        collectionsLock.write {
+            val collections = fsCache._unstable_collectionList(colMgr)
+            // Every collection is locked for the whole migration, so nothing is written to the old store meanwhile
+            val locks = collectionLocks.map { it.writeLock() }
+            locks.forEach { it.lock() }
+            try {
+                val oldStore = itemStore
+                val newStore = createItemStore(type)
+                Logger.log.info("Migrating cached items of ${collections.size} collections from ${oldStore.type} to $type")
+
+                for (col in collections) {
+                    val itemMgr = colMgr.getItemManager(col)
+                    newStore.removeCollection(itemMgr, col.uid)
+                    newStore.setAll(itemMgr, col.uid, oldStore.list(itemMgr, col.uid))
+                }
+
+                filesDir.mkdirs()
+                itemStoreFile.writeText(type)
+                itemStore = newStore
+
+                for (col in collections) {
+                    oldStore.removeCollection(colMgr.getItemManager(col), col.uid)
+                }
+            } finally {
+                locks.asReversed().forEach { it.unlock() }
+            }
+        }
+    }
+
     private fun clearUserCache() {
-        fsCache.clearUserCache()
+        collectionsLock.write {
+            memoryCache.evictAll()
+            collectionListCache = null
+            synchronized(itemIndexes) {
+                itemIndexes.clear()
+            }
+            fsCache.clearUserCache()
+        }
     }
 
     fun saveStoken(stoken: String) {
-        fsCache.saveStoken(stoken)
+        collectionsLock.write {
+            fsCache.saveStoken(stoken)
+            touchStokenMarker(null)
+            collectionListCache = null
+        }
     }
 
     fun loadStoken(): String? {
-        return fsCache.loadStoken()
+        return collectionsLock.read {
+            fsCache.loadStoken()
+        }
     }
 
     fun collectionSaveStoken(colUid: String, stoken: String) {
-        fsCache.collectionSaveStoken(colUid, stoken)
+        collectionLock(colUid).write {
+            fsCache.collectionSaveStoken(colUid, stoken)
+            touchStokenMarker(colUid)
+        }
     }
 
     fun collectionLoadStoken(colUid: String): String? {
-        return fsCache.collectionLoadStoken(colUid)
+        return collectionLock(colUid).read {
+            fsCache.collectionLoadStoken(colUid)
+        }
     }
 
     fun collectionList(colMgr: CollectionManager, withDeleted: Boolean = false): List<CachedCollection> {
-        return fsCache._unstable_collectionList(colMgr).filter {
-            withDeleted || !it.isDeleted
-        }.map{
-            CachedCollection(it, it.meta, it.collectionType)
+        val collections = collectionListCache ?: collectionsLock.read {
+            // Readers may both decrypt the list, but they both get the same result
+            collectionListCache ?: fsCache._unstable_collectionList(colMgr).map {
+                CachedCollection(it, it.meta, it.collectionType)
+            }.also {
+                collectionListCache = it
+            }
+        }
+        return collections.filter {
+            withDeleted || !it.col.isDeleted
         }
     }
 
+    /**
+     * Records that a collection was opened in the UI, see [recentCollections].
+     */
+    fun collectionViewed(colUid: String) {
+        synchronized(recentCollectionsFile) {
+            val recent = (listOf(colUid) + recentCollections()).distinct().take(MAX_RECENT_COLLECTIONS)
+            try {
+                filesDir.mkdirs()
+                recentCollectionsFile.writeText(recent.joinToString("\n"))
+            } catch (e: IOException) {
+                Logger.log.log(Level.WARNING, "Couldn't save recently viewed collections", e)
+            }
+        }
+    }
+
+    /**
+     * The uids of the collections that were most recently opened in the UI, most recent first.
+     */
+    fun recentCollections(): List<String> {
+        synchronized(recentCollectionsFile) {
+            return try {
+                recentCollectionsFile.readLines().filter { it.isNotEmpty() }
+            } catch (e: IOException) {
+                emptyList()
+            }
+        }
+    }
+
+    fun collectionGetCheckpoint(colUid: String): EtebaseSyncCheckpoint {
+        return EtebaseSyncCheckpoint(File(File(colsDir, colUid), "checkpoint"))
+    }
+
     fun collectionGet(colMgr: CollectionManager, colUid: String): CachedCollection {
-        return fsCache.collectionGet(colMgr, colUid).let {
-            CachedCollection(it, it.meta, it.collectionType)
+        (memoryCache.get(collectionKey(colUid)) as CachedCollection?)?.let { return it }
+        collectionListCache?.firstOrNull { it.col.uid == colUid }?.let { return it }
+
+        return collectionsLock.read {
+            fsCache.collectionGet(colMgr, colUid).let {
+                CachedCollection(it, it.meta, it.collectionType)
+            }.also {
+                memoryCache.put(collectionKey(colUid), it)
+            }
         }
     }
 
     fun collectionSet(colMgr: CollectionManager, collection: Collection) {
-        fsCache.collectionSet(colMgr, collection)
+        collectionsLock.write {
+            fsCache.collectionSet(colMgr, collection)
+            memoryCache.remove(collectionKey(collection.uid))
+            collectionListCache = null
+        }
     }
 
     fun collectionUnset(colMgr: CollectionManager, colUid: String) {
-        try {
-            fsCache.collectionUnset(colMgr, colUid)
-        } catch (e: UrlParseException) {
-            // Ignore, as it just means the file doesn't exist
+        collectionsLock.write {
+            collectionLock(colUid).write {
+                invalidateCollection(colUid)
+                collectionListCache = null
+                synchronized(itemIndexes) {
+                    itemIndexes.remove(colUid)
+                }
+                getCollectionItemIndexFile(colUid).delete()
+                getCollectionLegacyEtagIndexFile(colUid).delete()
+                itemStore.removeCollection(null, colUid)
+                try {
+                    fsCache.collectionUnset(colMgr, colUid)
+                } catch (e: UrlParseException) {
+                    // Ignore, as it just means the file doesn't exist
+                }
+            }
         }
     }
 
     fun itemList(itemMgr: ItemManager, colUid: String, withDeleted: Boolean = false): List<CachedItem> {
-        return fsCache._unstable_itemList(itemMgr, colUid).filter {
-            withDeleted || !it.isDeleted
-        }.map {
-            CachedItem(it, it.meta, it.contentString)
+        return collectionLock(colUid).read {
+            readLatency.measure { itemStore.list(itemMgr, colUid) }.filter {
+                withDeleted || !it.isDeleted
+            }.map {
+                CachedItem(it, it.meta, it.contentString)
+            }
+        }
+    }
+
+    /**
+     * Lists the metadata of the cached items (from the item index, so only the items whose mtime and summary
+     * aren't in memory yet are decrypted), which is all that item lists and statistics need.
+     */
+    fun itemInfoList(itemMgr: ItemManager, colUid: String, withDeleted: Boolean = false): List<CachedItemInfo> {
+        return collectionLock(colUid).read {
+            getItemIndex(itemMgr, colUid).list { itemUid ->
+                readLatency.measure { itemStore.get(itemMgr, colUid, itemUid) }
+            }.filter {
+                withDeleted || !it.isDeleted
+            }
         }
     }
 
     fun itemGet(itemMgr: ItemManager, colUid: String, itemUid: String): CachedItem? {
-        // Need the try because the inner call doesn't return null on missing, but an error
-        val ret = try {
-            fsCache.itemGet(itemMgr, colUid, itemUid)
-        } catch (e: EtebaseException) {
-            return null
+        (memoryCache.get(itemKey(colUid, itemUid)) as CachedItem?)?.let { return it }
+
+        return collectionLock(colUid).read {
+            val ret = readLatency.measure { itemStore.get(itemMgr, colUid, itemUid) } ?: return null
+            ret.let {
+                CachedItem(it, it.meta, it.contentString)
+            }.also {
+                memoryCache.put(itemKey(colUid, itemUid), it)
+            }
+        }
+    }
+
+    /**
+     * Returns the cached item without decrypting it, or null if it's not cached.
+     */
+    fun itemGetRaw(itemMgr: ItemManager, colUid: String, itemUid: String): Item? {
+        return collectionLock(colUid).read {
+            if (getItemIndex(itemMgr, colUid).get(itemUid) == null) {
+                return null
+            }
+            readLatency.measure { itemStore.get(itemMgr, colUid, itemUid) }
         }
-        return ret.let {
-            CachedItem(it, it.meta, it.contentString)
+    }
+
+    /**
+     * Returns the metadata of a cached item (from the item index, so nothing is decrypted), or null if it's not
+     * cached. The mtime and summary are only included if they are known already.
+     */
+    fun itemInfo(itemMgr: ItemManager, colUid: String, itemUid: String): CachedItemInfo? {
+        return collectionLock(colUid).read {
+            getItemIndex(itemMgr, colUid).get(itemUid)
         }
     }
 
     fun itemSet(itemMgr: ItemManager, colUid: String, item: Item) {
-        fsCache.itemSet(itemMgr, colUid, item)
+        collectionLock(colUid).write {
+            writeLatency.measure { itemStore.setAll(itemMgr, colUid, listOf(item)) }
+            memoryCache.remove(itemKey(colUid, item.uid))
+            getItemIndex(itemMgr, colUid).set(item)
+        }
+    }
+
+    /**
+     * Stores a whole page of [items] with a single acquisition of the collection's lock and a single update of the
+     * item index. If [stoken] is passed, it's saved as the collection's stoken once all of the items are stored,
+     * so a crash in between leaves the stoken behind the items (and the page is fetched again), never ahead.
+     */
+    fun itemSetAll(itemMgr: ItemManager, colUid: String, items: List<Item>, stoken: String? = null) {
+        collectionLock(colUid).write {
+            writeLatency.measure { itemStore.setAll(itemMgr, colUid, items) }
+            for (item in items) {
+                memoryCache.remove(itemKey(colUid, item.uid))
+            }
+            getItemIndex(itemMgr, colUid).setAll(items)
+            if (stoken != null) {
+                fsCache.collectionSaveStoken(colUid, stoken)
+                touchStokenMarker(colUid)
+            }
+        }
     }
 
     fun itemUnset(itemMgr: ItemManager, colUid: String, itemUid: String) {
-        fsCache.itemUnset(itemMgr, colUid, itemUid)
+        collectionLock(colUid).write {
+            writeLatency.measure { itemStore.unsetAll(itemMgr, colUid, listOf(itemUid)) }
+            memoryCache.remove(itemKey(colUid, itemUid))
+            getItemIndex(itemMgr, colUid).unset(itemUid)
+        }
+    }
+
+    /**
+     * Removes the tombstones of items that were deleted more than [tombstoneMaxAge] milliseconds ago (none if
+     * negative), as well as the left-overs of collections that are no longer cached.
+     */
+    fun compact(colMgr: CollectionManager, tombstoneMaxAge: Long): CompactionResult {
+        val sizeBefore = directorySize(colsDir)
+        var tombstonesRemoved = 0
+        var collectionsRemoved = 0
+
+        // Deleted collections are kept (and compacted) until they are unset
+        val collections = collectionsLock.read {
+            fsCache._unstable_collectionList(colMgr)
+        }
+
+        if (tombstoneMaxAge >= 0) {
+            val expiredBefore = System.currentTimeMillis() - tombstoneMaxAge
+            for (col in collections) {
+                val itemMgr = colMgr.getItemManager(col)
+                if (collectionStats(itemMgr, col.uid).tombstones == 0) {
+                    continue
+                }
+                collectionLock(col.uid).write {
+                    val index = getItemIndex(itemMgr, col.uid)
+                    // Only the mtimes of the tombstones are needed
+                    val expired = index.list { itemUid ->
+                        if (index.get(itemUid)?.isDeleted == true) itemStore.get(itemMgr, col.uid, itemUid) else null
+                    }.filter {
+                        it.isDeleted && it.mtime != null && it.mtime < expiredBefore
+                    }.map { it.uid }
+                    itemStore.unsetAll(itemMgr, col.uid, expired)
+                    for (itemUid in expired) {
+                        memoryCache.remove(itemKey(col.uid, itemUid))
+                    }
+                    index.unsetAll(expired)
+                    index.compact()
+                    itemStore.compact(col.uid)
+                    tombstonesRemoved += expired.size
+                }
+            }
+        }
+
+        val cachedUids = collections.map { it.uid }.toHashSet()
+        collectionsLock.write {
+            for (colDir in colsDir.listFiles() ?: emptyArray()) {
+                if (!colDir.isDirectory || cachedUids.contains(colDir.name)) {
+                    continue
+                }
+                // Only remove what the file system cache doesn't know of either
+                try {
+                    fsCache.collectionGet(colMgr, colDir.name)
+                    continue
+                } catch (e: EtebaseException) {
+                }
+
+                collectionLock(colDir.name).write {
+                    invalidateCollection(colDir.name)
+                    synchronized(itemIndexes) {
+                        itemIndexes.remove(colDir.name)
+                    }
+                    // Closes the pack of the collection, if the item store has one open
+                    itemStore.removeCollection(null, colDir.name)
+                    if (colDir.deleteRecursively()) {
+                        collectionsRemoved++
+                    }
+                }
+            }
+        }
+
+        val bytesReclaimed = Math.max(0, sizeBefore - directorySize(colsDir))
+        return CompactionResult(tombstonesRemoved, collectionsRemoved, bytesReclaimed)
+    }
+
+    fun collectionStats(itemMgr: ItemManager, colUid: String): CollectionCacheStats {
+        return collectionLock(colUid).read {
+            val items = getItemIndex(itemMgr, colUid).list()
+            CollectionCacheStats(colUid, items.size, items.count { it.isDeleted },
+                    directorySize(File(colsDir, colUid)), stokenAge(colUid))
+        }
+    }
+
+    /**
+     * Sizes and ages of the cached collections, and how well the cache performs. Walks the cache directory, so
+     * shouldn't be called on the main thread.
+     */
+    fun stats(colMgr: CollectionManager): CacheStats {
+        val collections = collectionList(colMgr, withDeleted = true).map {
+            collectionStats(colMgr.getItemManager(it.col), it.col.uid)
+        }
+        return CacheStats(collections, stokenAge(null), memoryCacheHits, memoryCacheMisses,
+                readLatency.snapshot(), writeLatency.snapshot())
+    }
+
+    private fun directorySize(dir: File): Long {
+        return dir.walkBottomUp().filter { it.isFile }.sumOf { it.length() }
     }
 
     companion object {
+        /** max. size of the in-memory tier of every account's cache (approximate, in bytes) */
+        private val MEMORY_CACHE_MAX_BYTES = Math.min(Runtime.getRuntime().maxMemory() / 32, 8L * 1024 * 1024).toInt()
+        private const val ENTRY_OVERHEAD_BYTES = 1024
+        private const val MAX_RECENT_COLLECTIONS = 5
+        private const val COLLECTION_LOCK_STRIPES = 16
+
         private val localCacheCache: HashMap<String, EtebaseLocalCache> = HashMap()
 
+        /**
+         * Drops the in-memory tier of all of the caches, see [android.app.Application.onTrimMemory].
+         */
+        fun onTrimMemory(level: Int) {
+            synchronized(localCacheCache) {
+                for (localCache in localCacheCache.values) {
+                    localCache.trimMemory(level)
+                }
+            }
+        }
+
         fun getInstance(context: Context, username: String): EtebaseLocalCache {
             synchronized(localCacheCache) {
                 val cached = localCacheCache.get(username)
@@ -116,14 +570,18 @@ class EtebaseLocalCache private constructor(context: Context, username: String)
             localCacheCache.remove(username)
         }
 
-        // FIXME: If we ever cache this we need to cache bust on changePassword
-        fun getEtebase(context: Context, httpClient: OkHttpClient, settings: AccountSettings): Account {
-            val client = Client.create(httpClient, settings.uri?.toString())
-            return Account.restore(client, settings.etebaseSession!!, null)
+        /**
+         * Returns the (shared) etebase account of [settings], see [EtebaseSessionPool]. Activities pass [foreground],
+         * so that they can ask the user about unknown certificates.
+         */
+        fun getEtebase(context: Context, settings: AccountSettings, foreground: Boolean = false): Account {
+            return EtebaseSessionPool.get(context, settings, foreground)
         }
     }
 }
 
 data class CachedCollection(val col: Collection, val meta: ItemMetadata, val collectionType: String)
 
-data class CachedItem(val item: Item, val meta: ItemMetadata, val content: String)
\ No newline at end of file
+data class CachedItem(val item: Item, val meta: ItemMetadata, val content: String)
+
+data class CompactionResult(val tombstonesRemoved: Int, val collectionsRemoved: Int, val bytesReclaimed: Long)
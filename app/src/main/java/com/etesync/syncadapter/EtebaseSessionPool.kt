@@ -0,0 +1,75 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter
+
+import android.content.Context
+import com.etebase.client.Account
+import com.etebase.client.Client
+import com.etesync.syncadapter.log.Logger
+
+/**
+ * Restored etebase accounts, one per app account, so the syncs of all collections (and the UI) share a session
+ * instead of restoring it every time. The UI gets an account of its own (with `foreground` set), so that it can
+ * still ask the user about unknown certificates, which the syncs can't.
+ *
+ * A session is restored again whenever the saved session or the server of the account changed (e.g. after a
+ * password change), and has to be [invalidate]d when logging out. The accounts are safe to use from several threads.
+ *
+ * Dropping a session doesn't close anything, as whoever got its account before may still be using it: the clients
+ * are built with the shared proxy and TLS setup and without a disk cache, so they don't hold anything that needs to be
+ * released, and are simply collected once the last user is done with the account.
+ */
+object EtebaseSessionPool {
+    private class Session(
+            val etebaseSession: String,
+            val serverUrl: String?,
+            val etebase: Account
+    )
+
+    /** sessions by account name and whether they are for the foreground */
+    private val sessions = HashMap<Pair<String, Boolean>, Session>()
+
+    fun get(context: Context, settings: AccountSettings, foreground: Boolean = false): Account {
+        val key = Pair(settings.account.name, foreground)
+        val etebaseSession = settings.etebaseSession!!
+        val serverUrl = settings.uri?.toString()
+
+        synchronized(sessions) {
+            val cached = sessions[key]
+            if (cached != null && cached.etebaseSession == etebaseSession && cached.serverUrl == serverUrl) {
+                return cached.etebase
+            }
+
+            Logger.log.fine("Restoring etebase session of ${key.first} (foreground: $foreground)")
+            val httpClient = HttpClient.Builder(context.applicationContext).setForeground(foreground).build()
+            val client = Client.create(httpClient.okHttpClient, serverUrl)
+            val etebase = Account.restore(client, etebaseSession, null)
+            sessions[key] = Session(etebaseSession, serverUrl, etebase)
+            return etebase
+        }
+    }
+
+    /**
+     * Drops the sessions of an account, e.g. on logout.
+     */
+    fun invalidate(accountName: String) {
+        synchronized(sessions) {
+            sessions.keys.removeAll { it.first == accountName }
+        }
+    }
+
+    /**
+     * Drops all of the sessions, e.g. when the HTTP settings (proxy, certificates) changed.
+     */
+    fun invalidateAll() {
+        synchronized(sessions) {
+            sessions.clear()
+        }
+    }
+}
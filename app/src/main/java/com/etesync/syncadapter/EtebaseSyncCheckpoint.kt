@@ -0,0 +1,133 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter
+
+import com.etebase.client.Item
+import com.etesync.syncadapter.log.Logger
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.logging.Level
+
+/**
+ * Records which items of the page that is currently being applied already made it to the local storage, so a
+ * sync that is interrupted mid-page doesn't need to apply them again.
+ *
+ * The first line of the file is the stoken the page was fetched with, followed by an "uid etag" line per applied
+ * item, appended (and synced to disk) whenever a batch of items has been committed. The checkpoint only applies to
+ * the page fetched with that stoken, and is removed once the page is complete (after the new stoken has been saved).
+ */
+class EtebaseSyncCheckpoint internal constructor(private val file: File) {
+    private var stoken: String? = null
+    private val applied = HashMap<String, String>()
+
+    init {
+        load()
+    }
+
+    val size: Int
+        get() = applied.size
+
+    /**
+     * Starts (or resumes) applying the page fetched with [pageStoken]. The recorded items are kept only if they
+     * belong to the same page.
+     */
+    fun begin(pageStoken: String?) {
+        if (file.exists() && stoken == pageStoken) {
+            return
+        }
+
+        stoken = pageStoken
+        applied.clear()
+        val tmp = File(file.path + ".tmp")
+        try {
+            file.parentFile?.mkdirs()
+            FileOutputStream(tmp).use { output ->
+                output.write(((pageStoken ?: "") + "\n").toByteArray())
+                output.fd.sync()
+            }
+            if (!tmp.renameTo(file)) {
+                throw IOException("Couldn't rename $tmp")
+            }
+        } catch (e: IOException) {
+            Logger.log.log(Level.WARNING, "Couldn't create sync checkpoint", e)
+            tmp.delete()
+        }
+    }
+
+    fun isApplied(item: Item): Boolean {
+        return isApplied(item.uid, item.etag)
+    }
+
+    internal fun isApplied(itemUid: String, etag: String): Boolean {
+        return applied[itemUid] == etag
+    }
+
+    fun markApplied(items: List<Item>) {
+        markApplied(items.map { Pair(it.uid, it.etag) }.toMap())
+    }
+
+    /**
+     * Records the items of [etags] (uid to etag) as applied.
+     */
+    internal fun markApplied(etags: Map<String, String>) {
+        if (etags.isEmpty()) {
+            return
+        }
+
+        applied.putAll(etags)
+        try {
+            FileOutputStream(file, true).use { output ->
+                val writer = output.writer()
+                for ((itemUid, etag) in etags) {
+                    writer.write(itemUid + SEPARATOR + etag + "\n")
+                }
+                writer.flush()
+                // The items are committed to the provider already, so this has to survive the process being killed
+                output.fd.sync()
+            }
+        } catch (e: IOException) {
+            // Not fatal, the items will just be applied again
+            Logger.log.log(Level.WARNING, "Couldn't update sync checkpoint", e)
+        }
+    }
+
+    /**
+     * Marks the page as complete. Has to be called after the stoken of the next page has been saved.
+     */
+    fun complete() {
+        stoken = null
+        applied.clear()
+        file.delete()
+    }
+
+    private fun load() {
+        if (!file.exists()) {
+            return
+        }
+
+        try {
+            val lines = file.readLines()
+            stoken = lines.firstOrNull()?.ifEmpty { null }
+            for (line in lines.drop(1)) {
+                val parts = line.split(SEPARATOR)
+                if (parts.size == 2) {
+                    applied[parts[0]] = parts[1]
+                }
+            }
+        } catch (e: IOException) {
+            Logger.log.log(Level.WARNING, "Couldn't read sync checkpoint, ignoring", e)
+            file.delete()
+        }
+    }
+
+    companion object {
+        private const val SEPARATOR = "\t"
+    }
+}
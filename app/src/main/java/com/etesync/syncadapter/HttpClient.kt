@@ -15,6 +15,8 @@ import at.bitfire.cert4android.CustomCertManager
 import com.etesync.syncadapter.log.Logger
 import com.etesync.syncadapter.model.ServiceDB
 import com.etesync.syncadapter.model.Settings
+import com.etesync.syncadapter.syncadapter.ResourceFetcher
+import com.etesync.syncadapter.syncadapter.SyncBackoff
 import okhttp3.*
 import okhttp3.internal.tls.OkHostnameVerifier
 import okhttp3.logging.HttpLoggingInterceptor
@@ -53,6 +55,95 @@ class HttpClient private constructor(
                 .addNetworkInterceptor(UserAgentInterceptor)
 
                 .build()
+
+        /**
+         * Proxy and TLS setup shared by all of the clients built with the default certificate handling. As the
+         * clients (built from [sharedClient]) also share the connection pool and dispatcher, this lets them reuse
+         * each other's connections and TLS sessions.
+         */
+        private class SharedConfig(
+                val proxy: Proxy?,
+                val certManager: CustomCertManager?,
+                val trustManager: X509TrustManager,
+                val sslSocketFactory: SSLSocketFactory,
+                val hostnameVerifier: HostnameVerifier
+        )
+
+        /**
+         * Shared configs by whether they are for the app settings (and foreground). They aren't per account, as
+         * the proxy and certificate settings are app-wide (see [Settings]): the authentication of an account is
+         * added to every client by its own interceptor, and clients with a client certificate or a certificate
+         * manager of their own don't use a shared config at all.
+         */
+        private val sharedConfigs = HashMap<Pair<Boolean, Boolean>, SharedConfig>()
+
+        private fun sharedConfig(context: Context?, foreground: Boolean): SharedConfig {
+            synchronized(sharedConfigs) {
+                return sharedConfigs.getOrPut(Pair(context != null, foreground)) {
+                    createSharedConfig(context?.applicationContext, foreground)
+                }
+            }
+        }
+
+        private fun createSharedConfig(context: Context?, foreground: Boolean): SharedConfig {
+            var proxy: Proxy? = null
+            var certManager: CustomCertManager? = null
+
+            context?.let {
+                val dbHelper = ServiceDB.OpenHelper(context)
+                val settings = Settings(dbHelper.readableDatabase)
+
+                try {
+                    if (settings.getBoolean(App.OVERRIDE_PROXY, false)) {
+                        val address = InetSocketAddress(
+                                settings.getString(App.OVERRIDE_PROXY_HOST, App.OVERRIDE_PROXY_HOST_DEFAULT),
+                                settings.getInt(App.OVERRIDE_PROXY_PORT, App.OVERRIDE_PROXY_PORT_DEFAULT)
+                        )
+
+                        proxy = Proxy(Proxy.Type.HTTP, address)
+                        Logger.log.log(Level.INFO, "Using proxy", proxy)
+                    }
+                } catch (e: Exception) {
+                    Logger.log.log(Level.SEVERE, "Can't set proxy, ignoring", e)
+                }
+
+                //if (BuildConfig.customCerts)
+                    certManager = CustomCertManager(context, true,
+                            !(settings.getBoolean(App.DISTRUST_SYSTEM_CERTIFICATES,false)), foreground)
+
+                dbHelper.close()
+            }
+
+            val trustManager = certManager ?: defaultTrustManager()
+            val hostnameVerifier = certManager?.hostnameVerifier(OkHostnameVerifier)
+                    ?: OkHostnameVerifier
+
+            val sslContext = SSLContext.getInstance("TLS")
+            sslContext.init(null, arrayOf(trustManager), null)
+            return SharedConfig(proxy, certManager, trustManager, sslContext.socketFactory, hostnameVerifier)
+        }
+
+        private fun defaultTrustManager(): X509TrustManager {
+            val factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm())
+            factory.init(null as KeyStore?)
+            return factory.trustManagers.first() as X509TrustManager
+        }
+
+        /**
+         * Has to be called when the proxy or certificate settings changed, so that new clients pick them up.
+         *
+         * The old configs are dropped, but their certificate managers aren't closed: clients built from them may
+         * still be running requests, which would fail with a closed certificate manager.
+         */
+        fun onSettingsChanged() {
+            synchronized(sharedConfigs) {
+                sharedConfigs.clear()
+            }
+            // Don't reuse connections that were made with the old settings
+            sharedClient.connectionPool.evictAll()
+            EtebaseSessionPool.invalidateAll()
+            ResourceFetcher.reset()
+        }
     }
 
 
@@ -68,6 +159,7 @@ class HttpClient private constructor(
     ) {
         private var certManager: CustomCertManager? = null
         private var certificateAlias: String? = null
+        private var foreground = true
 
         private val orig = sharedClient.newBuilder()
 
@@ -83,33 +175,10 @@ class HttpClient private constructor(
                 orig.addInterceptor(loggingInterceptor)
             }
 
-            context?.let {
-                val dbHelper = ServiceDB.OpenHelper(context)
-                val settings = Settings(dbHelper.readableDatabase)
-
-                try {
-                    if (settings.getBoolean(App.OVERRIDE_PROXY, false)) {
-                        val address = InetSocketAddress(
-                                settings.getString(App.OVERRIDE_PROXY_HOST, App.OVERRIDE_PROXY_HOST_DEFAULT),
-                                settings.getInt(App.OVERRIDE_PROXY_PORT, App.OVERRIDE_PROXY_PORT_DEFAULT)
-                        )
-
-                        val proxy = Proxy(Proxy.Type.HTTP, address)
-                        orig.proxy(proxy)
-                        Logger.log.log(Level.INFO, "Using proxy", proxy)
-                    }
-                } catch (e: Exception) {
-                    Logger.log.log(Level.SEVERE, "Can't set proxy, ignoring", e)
-                } finally {
-                    // dbHelper.close()
-                }
-
-                //if (BuildConfig.customCerts)
-                    customCertManager(CustomCertManager(context, true,
-                            !(settings.getBoolean(App.DISTRUST_SYSTEM_CERTIFICATES,false)), true))
-
-                dbHelper.close()
-            }
+            // per-endpoint request counters and timings (see the debug info)
+            orig.addNetworkInterceptor(NetworkMetrics.interceptor)
+            // Retry-After hints for the sync backoff
+            orig.addNetworkInterceptor(SyncBackoff.interceptor)
 
             // use account settings for authentication
             accountSettings?.let {
@@ -121,20 +190,33 @@ class HttpClient private constructor(
             addAuthentication(host, authToken)
         }
 
-        fun withDiskCache(): Builder {
+        fun withDiskCache(name: String = "HttpClient", maxSize: Long = DISK_CACHE_MAX_SIZE): Builder {
             val context = context ?: throw IllegalArgumentException("Context is required to find the cache directory")
             for (dir in arrayOf(context.externalCacheDir, context.cacheDir).filterNotNull()) {
                 if (dir.exists() && dir.canWrite()) {
-                    val cacheDir = File(dir, "HttpClient")
+                    val cacheDir = File(dir, name)
                     cacheDir.mkdir()
                     Logger.log.fine("Using disk cache: $cacheDir")
-                    orig.cache(Cache(cacheDir, DISK_CACHE_MAX_SIZE))
+                    orig.cache(Cache(cacheDir, maxSize))
                     break
                 }
             }
             return this
         }
 
+        /**
+         * Uses the disk cache of another client. Only one [Cache] may use a cache directory at a time.
+         */
+        fun withCache(cache: Cache): Builder {
+            orig.cache(cache)
+            return this
+        }
+
+        fun addNetworkInterceptor(interceptor: Interceptor): Builder {
+            orig.addNetworkInterceptor(interceptor)
+            return this
+        }
+
         fun followRedirects(follow: Boolean): Builder {
             orig.followRedirects(follow)
             return this
@@ -144,6 +226,7 @@ class HttpClient private constructor(
             certManager = manager
         }
         fun setForeground(foreground: Boolean): Builder {
+            this.foreground = foreground
             certManager?.appInForeground = foreground
             return this
         }
@@ -180,11 +263,16 @@ class HttpClient private constructor(
         }
 
         fun build(): HttpClient {
-            val trustManager = certManager ?: {
-                val factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm())
-                factory.init(null as KeyStore?)
-                factory.trustManagers.first() as X509TrustManager
-            }()
+            if (certManager == null && certificateAlias == null) {
+                val shared = sharedConfig(context, foreground)
+                shared.proxy?.let { orig.proxy(it) }
+                orig.sslSocketFactory(shared.sslSocketFactory, shared.trustManager)
+                orig.hostnameVerifier(shared.hostnameVerifier)
+                // The shared certificate manager isn't owned (and closed) by the client
+                return HttpClient(orig.build(), null)
+            }
+
+            val trustManager = certManager ?: defaultTrustManager()
 
             val hostnameVerifier = certManager?.hostnameVerifier(OkHostnameVerifier)
                     ?: OkHostnameVerifier
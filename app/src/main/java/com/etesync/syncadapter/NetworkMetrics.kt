@@ -0,0 +1,179 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter
+
+import okhttp3.Connection
+import okhttp3.Interceptor
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.ResponseBody
+import okio.Buffer
+import okio.BufferedSource
+import okio.ForwardingSource
+import okio.buffer
+import java.util.*
+
+/**
+ * Request counters and timings of all of the clients built with [HttpClient.Builder], aggregated in memory per
+ * endpoint (method and path, with the UIDs in it replaced by "*"), so the debug info shows which calls take the
+ * most radio time.
+ *
+ * The interceptor is a network interceptor: it only sees requests that actually go to the network, and counts the
+ * bytes as transferred (i.e. compressed).
+ */
+object NetworkMetrics {
+    /** further endpoints are counted as [OTHER_ENDPOINT] */
+    private const val MAX_ENDPOINTS = 64
+    private const val OTHER_ENDPOINT = "(other)"
+
+    class EndpointStats {
+        var requests = 0
+        var failures = 0
+        var reusedConnections = 0
+        var requestBytes: Long = 0
+        var responseBytes: Long = 0
+        val statusCodes = TreeMap<Int, Int>()
+        internal val timeToFirstByte = LatencyRecorder(128)
+        internal val totalTime = LatencyRecorder(128)
+    }
+
+    private val endpoints = HashMap<String, EndpointStats>()
+
+    /** connections that have been used before, to tell whether a request reused a connection */
+    private val seenConnections = Collections.newSetFromMap(WeakHashMap<Connection, Boolean>())
+
+    private val since = System.currentTimeMillis()
+
+    val interceptor = object : Interceptor {
+        override fun intercept(chain: Interceptor.Chain): Response {
+            val request = chain.request()
+            val endpoint = endpoint(request)
+            val started = System.nanoTime()
+
+            val reused = chain.connection()?.let { connection ->
+                synchronized(seenConnections) {
+                    !seenConnections.add(connection)
+                }
+            } ?: false
+            val requestBytes = request.headers.byteCount() + Math.max(request.body?.contentLength() ?: 0, 0)
+
+            val response = try {
+                chain.proceed(request)
+            } catch (e: Exception) {
+                synchronized(endpoints) {
+                    val stats = stats(endpoint)
+                    stats.requests++
+                    stats.failures++
+                    stats.requestBytes += requestBytes
+                }
+                throw e
+            }
+            val timeToFirstByte = System.nanoTime() - started
+
+            synchronized(endpoints) {
+                val stats = stats(endpoint)
+                stats.requests++
+                if (reused) {
+                    stats.reusedConnections++
+                }
+                stats.requestBytes += requestBytes
+                stats.responseBytes += response.headers.byteCount()
+                stats.statusCodes[response.code] = (stats.statusCodes[response.code] ?: 0) + 1
+                stats.timeToFirstByte.record(timeToFirstByte)
+            }
+
+            val body = response.body ?: return response.also { recordDone(endpoint, started, 0) }
+            return response.newBuilder()
+                    .body(CountingResponseBody(body) { bytes -> recordDone(endpoint, started, bytes) })
+                    .build()
+        }
+    }
+
+    private fun recordDone(endpoint: String, started: Long, bodyBytes: Long) {
+        val totalTime = System.nanoTime() - started
+        synchronized(endpoints) {
+            val stats = stats(endpoint)
+            stats.responseBytes += bodyBytes
+            stats.totalTime.record(totalTime)
+        }
+    }
+
+    private fun stats(endpoint: String): EndpointStats {
+        endpoints[endpoint]?.let { return it }
+        val key = if (endpoints.size < MAX_ENDPOINTS) endpoint else OTHER_ENDPOINT
+        return endpoints.getOrPut(key) { EndpointStats() }
+    }
+
+    internal fun endpoint(request: Request): String {
+        val path = request.url.pathSegments.joinToString("/") { segment ->
+            // Collection, item and journal UIDs (and numeric IDs)
+            if (segment.length >= 20 || (segment.isNotEmpty() && segment.all { it.isDigit() })) "*" else segment
+        }
+        return "${request.method} ${request.url.host}/$path"
+    }
+
+    fun dump(report: StringBuilder) {
+        synchronized(endpoints) {
+            val uptime = (System.currentTimeMillis() - since) / 1000
+            report.append("Since ").append(uptime).append(" s ago\n")
+            for ((endpoint, stats) in endpoints.entries.sortedByDescending { it.value.responseBytes + it.value.requestBytes }) {
+                report.append(endpoint).append(": ").append(stats.requests).append(" requests (")
+                        .append(stats.failures).append(" failed, ").append(stats.reusedConnections)
+                        .append(" on reused connections), sent ").append(stats.requestBytes).append(" bytes, received ")
+                        .append(stats.responseBytes).append(" bytes\n")
+                report.append("  Status: ").append(stats.statusCodes.entries.joinToString { "${it.key}: ${it.value}" }).append("\n")
+                report.append("  Time to first byte: ").append(stats.timeToFirstByte.snapshot()).append("\n")
+                report.append("  Total: ").append(stats.totalTime.snapshot()).append("\n")
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes of a response body and reports them when the body was read completely or closed.
+     */
+    private class CountingResponseBody(
+            private val delegate: ResponseBody,
+            private val onDone: (Long) -> Unit
+    ) : ResponseBody() {
+        private val source: BufferedSource by lazy {
+            object : ForwardingSource(delegate.source()) {
+                private var bytes: Long = 0
+                private var done = false
+
+                override fun read(sink: Buffer, byteCount: Long): Long {
+                    val read = super.read(sink, byteCount)
+                    if (read < 0) {
+                        finish()
+                    } else {
+                        bytes += read
+                    }
+                    return read
+                }
+
+                override fun close() {
+                    finish()
+                    super.close()
+                }
+
+                private fun finish() {
+                    if (!done) {
+                        done = true
+                        onDone(bytes)
+                    }
+                }
+            }.buffer()
+        }
+
+        override fun contentType() = delegate.contentType()
+
+        override fun contentLength() = delegate.contentLength()
+
+        override fun source() = source
+    }
+}
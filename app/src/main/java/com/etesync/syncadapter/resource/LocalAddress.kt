@@ -8,7 +8,16 @@
 
 package com.etesync.syncadapter.resource
 
+import at.bitfire.vcard4android.BatchOperation
 import at.bitfire.vcard4android.Contact
 
 interface LocalAddress: LocalResource<Contact> {
-}
\ No newline at end of file
+    /** Enqueues the removal of this resource to [batch] instead of deleting it right away. */
+    fun enqueueDelete(batch: BatchOperation)
+
+    /**
+     * Enqueues the insertion of this resource to [batch] instead of adding it right away. Its row ID is only known
+     * once the batch has been committed.
+     */
+    fun enqueueAdd(batch: BatchOperation)
+}
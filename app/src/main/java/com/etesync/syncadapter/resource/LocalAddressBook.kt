@@ -42,6 +42,9 @@ class LocalAddressBook(
         val USER_DATA_URL = "url"
         const val USER_DATA_READ_ONLY = "read_only"
 
+        /** SQLite allows at most 999 arguments per statement */
+        private const val MAX_SELECTION_ARGS = 500
+
         fun create(context: Context, provider: ContentProviderClient, mainAccount: Account, journalEntity: JournalEntity): LocalAddressBook {
             val info = journalEntity.info
             val accountManager = AccountManager.get(context)
@@ -360,6 +363,63 @@ class LocalAddressBook(
         }
     }
 
+    /**
+     * Returns the row IDs of the contacts with the given [fileNames], e.g. of contacts which have just been added by
+     * a batch.
+     */
+    fun findContactIds(fileNames: Collection<String>): Map<String, Long> {
+        val ids = HashMap<String, Long>()
+        for (chunk in fileNames.chunked(MAX_SELECTION_ARGS)) {
+            provider!!.query(syncAdapterURI(RawContacts.CONTENT_URI),
+                    arrayOf(RawContacts._ID, AndroidContact.COLUMN_FILENAME),
+                    "${AndroidContact.COLUMN_FILENAME} IN (${chunk.joinToString(",") { "?" }})", chunk.toTypedArray(), null)?.use { cursor ->
+                while (cursor.moveToNext())
+                    ids[cursor.getString(1)] = cursor.getLong(0)
+            }
+        }
+        return ids
+    }
+
+    override fun buildFilenameIndex(): LocalFilenameIndex<LocalAddress> {
+        val entries = HashMap<String, LocalFilenameIndex.Entry>()
+
+        provider!!.query(syncAdapterURI(RawContacts.CONTENT_URI),
+                arrayOf(RawContacts._ID, AndroidContact.COLUMN_FILENAME, AndroidContact.COLUMN_ETAG),
+                "${AndroidContact.COLUMN_FILENAME} IS NOT NULL", null, null)?.use { cursor ->
+            while (cursor.moveToNext())
+                entries[cursor.getString(1)] = LocalFilenameIndex.Entry(cursor.getLong(0), cursor.getString(2))
+        }
+
+        if (includeGroups) {
+            provider!!.query(groupsSyncUri(),
+                    arrayOf(Groups._ID, AndroidGroup.COLUMN_FILENAME, AndroidGroup.COLUMN_ETAG),
+                    "${AndroidGroup.COLUMN_FILENAME} IS NOT NULL", null, null)?.use { cursor ->
+                while (cursor.moveToNext()) {
+                    // contacts take precedence, like in findByFilename()
+                    val fileName = cursor.getString(1)
+                    if (!entries.containsKey(fileName))
+                        entries[fileName] = LocalFilenameIndex.Entry(cursor.getLong(0), cursor.getString(2), true)
+                }
+            }
+        }
+
+        return LocalFilenameIndex(entries, { fileName, entry ->
+            if (entry.isGroup) {
+                val values = ContentValues(3)
+                values.put(Groups._ID, entry.id)
+                values.put(AndroidGroup.COLUMN_FILENAME, fileName)
+                values.put(AndroidGroup.COLUMN_ETAG, entry.eTag)
+                LocalGroup(this, values)
+            } else {
+                val values = ContentValues(3)
+                values.put(RawContacts._ID, entry.id)
+                values.put(AndroidContact.COLUMN_FILENAME, fileName)
+                values.put(AndroidContact.COLUMN_ETAG, entry.eTag)
+                LocalContact(this, values)
+            }
+        }, { findByFilename(it) })
+    }
+
     fun findGroupById(id: Long): LocalGroup =
             queryGroups("${Groups._ID}=?", arrayOf(id.toString())).firstOrNull()
                     ?: throw FileNotFoundException()
@@ -187,6 +187,26 @@ class LocalCalendar private constructor(
     override fun findByFilename(filename: String): LocalEvent?
         = queryEvents(Events._SYNC_ID + " =? ", arrayOf(filename)).firstOrNull()
 
+    override fun buildFilenameIndex(): LocalFilenameIndex<LocalEvent> {
+        val entries = HashMap<String, LocalFilenameIndex.Entry>()
+
+        try {
+            provider.query(syncAdapterURI(Events.CONTENT_URI),
+                    arrayOf(Events._ID, Events._SYNC_ID, LocalEvent.COLUMN_ETAG),
+                    "${Events.CALENDAR_ID}=? AND ${Events._SYNC_ID} IS NOT NULL AND ${Events.ORIGINAL_ID} IS NULL",
+                    arrayOf(id.toString()), null)?.use { cursor ->
+                while (cursor.moveToNext())
+                    entries[cursor.getString(1)] = LocalFilenameIndex.Entry(cursor.getLong(0), cursor.getString(2))
+            }
+        } catch (e: RemoteException) {
+            throw CalendarStorageException("Couldn't index calendar events", e)
+        }
+
+        return LocalFilenameIndex(entries, { fileName, entry ->
+            LocalEvent.fromIndex(this, entry.id, fileName, entry.eTag)
+        }, { findByFilename(it) })
+    }
+
     fun processDirtyExceptions() {
         // process deleted exceptions
         Logger.log.info("Processing deleted exceptions")
@@ -19,6 +19,10 @@ interface LocalCollection<out T: LocalResource<*>> {
     fun findByUid(uid: String): T?
     fun findByFilename(filename: String): T?
 
+    /**
+     * Scans all of the resources once and returns an index of them by file name.
+     */
+    fun buildFilenameIndex(): LocalFilenameIndex<T>
 
     fun count(): Long
 }
@@ -156,6 +156,54 @@ class LocalContact : AndroidContact, LocalAddress {
 
     }
 
+    /**
+     * Same as [update], but enqueues the operations to [batch] instead of committing them right away.
+     */
+    fun enqueueUpdate(contact: Contact, batch: BatchOperation) {
+        this.contact = contact
+
+        val builder = ContentProviderOperation.newUpdate(rawContactSyncURI())
+                .withYieldAllowed(true)
+        buildContact(builder, true)
+        batch.enqueue(BatchOperation.Operation(builder))
+
+        // delete known data rows before adding the new ones; don't delete group memberships!
+        batch.enqueue(BatchOperation.Operation(
+                ContentProviderOperation.newDelete(dataSyncURI())
+                        .withSelection(
+                                Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + " NOT IN (?,?)",
+                                arrayOf(id.toString(), GroupMembership.CONTENT_ITEM_TYPE, CachedGroupMembership.CONTENT_ITEM_TYPE)
+                        )
+        ))
+        insertDataRows(batch)
+    }
+
+    override fun enqueueDelete(batch: BatchOperation) {
+        batch.enqueue(BatchOperation.Operation(
+                ContentProviderOperation.newDelete(rawContactSyncURI())
+                        .withYieldAllowed(true)
+        ))
+    }
+
+    /**
+     * Enqueues the insertion of the raw contact to [batch]. Its data rows have to refer to the row ID of the raw
+     * contact, so they are enqueued by [enqueueDataRows] once the batch has been committed.
+     */
+    override fun enqueueAdd(batch: BatchOperation) {
+        val builder = ContentProviderOperation.newInsert(addressBook.syncAdapterURI(ContactsContract.RawContacts.CONTENT_URI))
+                .withYieldAllowed(true)
+        buildContact(builder, false)
+        batch.enqueue(BatchOperation.Operation(builder))
+    }
+
+    /**
+     * Enqueues the insertion of the data rows of a contact added by [enqueueAdd], which got the row ID [id].
+     */
+    fun enqueueDataRows(id: Long, batch: BatchOperation) {
+        this.id = id
+        insertDataRows(batch)
+    }
+
     fun updateAsDirty(contact: Contact): Uri {
         saveAsDirty = true
         return this.update(contact)
@@ -34,6 +34,17 @@ class LocalEvent : AndroidEvent, LocalResource<Event> {
         internal const val COLUMN_ETAG = CalendarContract.Events.SYNC_DATA1
         internal const val COLUMN_UID = Events.UID_2445
         internal const val COLUMN_SEQUENCE = CalendarContract.Events.SYNC_DATA3
+
+        /**
+         * Creates an event from a [LocalFilenameIndex] entry; the event data is loaded on first access.
+         */
+        internal fun fromIndex(calendar: AndroidCalendar<*>, id: Long, fileName: String, eTag: String?): LocalEvent {
+            val values = ContentValues(3)
+            values.put(Events._ID, id)
+            values.put(Events._SYNC_ID, fileName)
+            values.put(COLUMN_ETAG, eTag)
+            return LocalEvent(calendar, values)
+        }
     }
 
     private var saveAsDirty = false // When true, the resource will be saved as dirty
@@ -119,6 +130,34 @@ class LocalEvent : AndroidEvent, LocalResource<Event> {
         super.insertReminder(batch, idxEvent, modifiedAlarm)
     }
 
+    /**
+     * Same as [add], but enqueues the operations to [batch] instead of committing them right away.
+     */
+    fun enqueueAdd(batch: BatchOperation) {
+        add(batch)
+    }
+
+    /**
+     * Same as [update], but enqueues the operations to [batch] instead of committing them right away.
+     */
+    fun enqueueUpdate(event: Event, batch: BatchOperation) {
+        enqueueDelete(batch)
+        this.event = event
+        add(batch)
+    }
+
+    fun enqueueDelete(batch: BatchOperation) {
+        // remove exceptions of the event, too (CalendarProvider doesn't do this)
+        batch.enqueue(BatchOperation.Operation(
+                ContentProviderOperation.newDelete(calendar.syncAdapterURI(Events.CONTENT_URI))
+                        .withSelection(Events.ORIGINAL_ID + "=?", arrayOf(id.toString()))
+                        .withYieldAllowed(true)
+        ))
+        batch.enqueue(BatchOperation.Operation(
+                ContentProviderOperation.newDelete(eventSyncURI())
+        ))
+    }
+
     fun addAsDirty(): Uri {
         saveAsDirty = true
         return this.add()
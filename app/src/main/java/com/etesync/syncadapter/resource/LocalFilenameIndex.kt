@@ -0,0 +1,57 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter.resource
+
+/**
+ * In-memory lookup of local resources by file name, built with a single scan of the provider so
+ * that the sync doesn't need a query per remote item.
+ *
+ * Only the row id and ETag are kept; resources are created on lookup and load their data lazily.
+ * Resources that were added without a known row id (for instance as part of a pending batch) are
+ * looked up with [fallback] instead.
+ */
+class LocalFilenameIndex<out T: LocalResource<*>>(
+        private val entries: MutableMap<String, Entry>,
+        private val fromEntry: (String, Entry) -> T,
+        private val fallback: (String) -> T?
+) {
+    class Entry(val id: Long, val eTag: String?, val isGroup: Boolean = false)
+
+    private val unindexed = HashSet<String>()
+
+    val size: Int
+        get() = entries.size
+
+    fun find(fileName: String): T? {
+        if (unindexed.contains(fileName)) {
+            return fallback(fileName)
+        }
+        return entries[fileName]?.let { fromEntry(fileName, it) }
+    }
+
+    fun eTag(fileName: String): String? = entries[fileName]?.eTag
+
+    fun put(fileName: String, entry: Entry) {
+        entries[fileName] = entry
+        unindexed.remove(fileName)
+    }
+
+    /**
+     * Records that [fileName] exists locally, but its row id isn't known yet.
+     */
+    fun putUnindexed(fileName: String) {
+        entries.remove(fileName)
+        unindexed.add(fileName)
+    }
+
+    fun remove(fileName: String) {
+        entries.remove(fileName)
+        unindexed.remove(fileName)
+    }
+}
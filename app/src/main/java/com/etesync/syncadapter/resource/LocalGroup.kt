@@ -222,6 +222,34 @@ class LocalGroup : AndroidGroup, LocalAddress {
     }
 
 
+    /**
+     * Same as [update], but enqueues the operation to [batch] instead of committing it right away.
+     */
+    fun enqueueUpdate(group: Contact, batch: BatchOperation) {
+        this.contact = group
+
+        batch.enqueue(BatchOperation.Operation(
+                ContentProviderOperation.newUpdate(groupSyncUri())
+                        .withValues(contentValues())
+                        .withYieldAllowed(true)
+        ))
+    }
+
+    override fun enqueueDelete(batch: BatchOperation) {
+        batch.enqueue(BatchOperation.Operation(
+                ContentProviderOperation.newDelete(groupSyncUri())
+                        .withYieldAllowed(true)
+        ))
+    }
+
+    override fun enqueueAdd(batch: BatchOperation) {
+        batch.enqueue(BatchOperation.Operation(
+                ContentProviderOperation.newInsert(addressBook.groupsSyncUri())
+                        .withValues(contentValues())
+                        .withYieldAllowed(true)
+        ))
+    }
+
     fun updateAsDirty(group: Contact, members: List<Long>): Uri {
         saveAsDirty = true
 
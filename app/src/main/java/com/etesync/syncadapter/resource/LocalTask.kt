@@ -15,6 +15,7 @@ import android.text.TextUtils
 import at.bitfire.ical4android.AndroidTask
 import at.bitfire.ical4android.AndroidTaskFactory
 import at.bitfire.ical4android.AndroidTaskList
+import at.bitfire.ical4android.BatchOperation
 import at.bitfire.ical4android.Task
 import com.etesync.syncadapter.log.Logger
 import org.dmfs.tasks.contract.TaskContract
@@ -27,6 +28,17 @@ class LocalTask : AndroidTask, LocalResource<Task> {
         internal const val COLUMN_ETAG = TaskContract.Tasks.SYNC1
         internal const val COLUMN_UID = TaskContract.Tasks.SYNC2
         internal const val COLUMN_SEQUENCE = TaskContract.Tasks.SYNC3
+
+        /**
+         * Creates a task from a [LocalFilenameIndex] entry; the task data is loaded on first access.
+         */
+        internal fun fromIndex(taskList: AndroidTaskList<*>, id: Long, fileName: String, eTag: String?): LocalTask {
+            val values = ContentValues(3)
+            values.put(TaskContract.Tasks._ID, id)
+            values.put(TaskContract.Tasks._SYNC_ID, fileName)
+            values.put(COLUMN_ETAG, eTag)
+            return LocalTask(taskList, values)
+        }
     }
 
     private var saveAsDirty = false // When true, the resource will be saved as dirty
@@ -89,6 +101,13 @@ class LocalTask : AndroidTask, LocalResource<Task> {
         return this.update(task)
     }
 
+    fun enqueueDelete(batch: BatchOperation) {
+        batch.enqueue(BatchOperation.Operation(
+                ContentProviderOperation.newDelete(taskSyncURI())
+                        .withYieldAllowed(true)
+        ))
+    }
+
     fun addAsDirty(): Uri {
         saveAsDirty = true
         return this.add()
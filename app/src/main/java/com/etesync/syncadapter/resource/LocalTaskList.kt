@@ -130,6 +130,26 @@ class LocalTaskList private constructor(
     override fun findByFilename(filename: String): LocalTask?
             = queryTasks(Tasks._SYNC_ID + " =? ", arrayOf(filename)).firstOrNull()
 
+    override fun buildFilenameIndex(): LocalFilenameIndex<LocalTask> {
+        val entries = HashMap<String, LocalFilenameIndex.Entry>()
+
+        try {
+            provider.client.query(
+                    TaskProvider.syncAdapterUri(provider.tasksUri(), account),
+                    arrayOf(Tasks._ID, Tasks._SYNC_ID, LocalTask.COLUMN_ETAG),
+                    "${Tasks.LIST_ID}=? AND ${Tasks._SYNC_ID} IS NOT NULL", arrayOf(id.toString()), null)?.use { cursor ->
+                while (cursor.moveToNext())
+                    entries[cursor.getString(1)] = LocalFilenameIndex.Entry(cursor.getLong(0), cursor.getString(2))
+            }
+        } catch (e: RemoteException) {
+            throw CalendarStorageException("Couldn't index tasks", e)
+        }
+
+        return LocalFilenameIndex(entries, { fileName, entry ->
+            LocalTask.fromIndex(this, entry.id, fileName, entry.eTag)
+        }, { findByFilename(it) })
+    }
+
     override fun count(): Long {
         try {
             val cursor = provider.client.query(
@@ -0,0 +1,79 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter.syncadapter
+
+/**
+ * Chooses how many items to fetch or push per request.
+ *
+ * The size is capped so that a request carries about [targetBytes] of payload (based on the average item
+ * size seen so far), halved when a round-trip takes more than twice [targetMillis] and doubled when full
+ * requests finish within [targetMillis]. It always stays within [minSize] and [maxSize].
+ */
+class AdaptiveChunkSize(
+        private val minSize: Int,
+        private val maxSize: Int,
+        initialSize: Int,
+        private val targetBytes: Long = DEFAULT_TARGET_BYTES,
+        private val targetMillis: Long = DEFAULT_TARGET_MILLIS
+) {
+    private var size = initialSize.coerceIn(minSize, maxSize)
+    private var bytesPerItem = 0.0
+
+    /** The number of items to use for the next request. */
+    val current: Int
+        @Synchronized get() = size
+
+    /** Average payload size of an item, or 0 if nothing has been measured yet. */
+    val averageItemBytes: Long
+        @Synchronized get() = bytesPerItem.toLong()
+
+    /**
+     * Records the payload of a request.
+     */
+    @Synchronized
+    fun onPayload(items: Int, bytes: Long) {
+        if (items <= 0) {
+            return
+        }
+
+        val sample = bytes.toDouble() / items
+        bytesPerItem = if (bytesPerItem == 0.0) sample else bytesPerItem * (1 - SMOOTHING) + sample * SMOOTHING
+        size = capByPayload(size)
+    }
+
+    /**
+     * Records the round-trip time of a request carrying [items] items.
+     */
+    @Synchronized
+    fun onRoundTrip(items: Int, millis: Long) {
+        val next = when {
+            millis > 2 * targetMillis -> size / 2
+            // Only grow if the request was full, a short one doesn't tell us anything about the link
+            millis < targetMillis && items >= size -> size * 2
+            else -> size
+        }
+        size = capByPayload(next)
+    }
+
+    private fun capByPayload(size: Int): Int {
+        val capped = if (bytesPerItem > 0) Math.min(size.toLong(), (targetBytes / bytesPerItem).toLong()).toInt() else size
+        return capped.coerceIn(minSize, maxSize)
+    }
+
+    override fun toString(): String {
+        return "$size (avg. item: ${averageItemBytes}B)"
+    }
+
+    companion object {
+        const val DEFAULT_TARGET_BYTES: Long = 512 * 1024
+        const val DEFAULT_TARGET_MILLIS: Long = 3 * 1000
+
+        private const val SMOOTHING = 0.3
+    }
+}
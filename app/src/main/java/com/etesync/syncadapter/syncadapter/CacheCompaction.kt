@@ -0,0 +1,88 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter.syncadapter
+
+import android.accounts.Account
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.os.BatteryManager
+import android.os.PowerManager
+import com.etesync.syncadapter.AccountSettings
+import com.etesync.syncadapter.EtebaseLocalCache
+import com.etesync.syncadapter.log.Logger
+import java.util.concurrent.TimeUnit
+import java.util.logging.Level
+
+/**
+ * Compacts the local cache of an account (see [EtebaseLocalCache.compact]) after a successful sync, at most once
+ * a day and only while the device is charging or not in use.
+ */
+object CacheCompaction {
+    private val MIN_INTERVAL = TimeUnit.DAYS.toMillis(1)
+
+    private val running = HashSet<String>()
+
+    fun runIfDue(context: Context, account: Account) {
+        val now = System.currentTimeMillis()
+        try {
+            val settings = AccountSettings(context, account)
+            if (settings.isLegacy || Math.abs(now - settings.cacheCompactedAt) < MIN_INTERVAL) {
+                return
+            }
+            if (!isIdleOrCharging(context)) {
+                Logger.log.fine("Device in use and not charging, postponing cache compaction")
+                return
+            }
+
+            // The different authorities of an account may finish syncing at the same time
+            synchronized(running) {
+                if (!running.add(account.name)) {
+                    return
+                }
+            }
+            try {
+                compact(context, settings)
+                settings.cacheCompactedAt = now
+            } finally {
+                synchronized(running) {
+                    running.remove(account.name)
+                }
+            }
+        } catch (e: Exception) {
+            // Not fatal, it will be tried again after the next sync
+            Logger.log.log(Level.WARNING, "Couldn't compact cache of $account", e)
+        }
+    }
+
+    private fun compact(context: Context, settings: AccountSettings) {
+        val maxAgeDays = settings.cacheTombstoneMaxAgeDays
+        val tombstoneMaxAge = if (maxAgeDays < 0) -1 else TimeUnit.DAYS.toMillis(maxAgeDays.toLong())
+
+        val etebase = EtebaseLocalCache.getEtebase(context, settings)
+        val etebaseLocalCache = EtebaseLocalCache.getInstance(context, settings.account.name)
+
+        val started = System.currentTimeMillis()
+        val result = etebaseLocalCache.compact(etebase.collectionManager, tombstoneMaxAge)
+        Logger.log.info("Compacted cache of ${settings.account.name} in ${System.currentTimeMillis() - started} ms: " +
+                "removed ${result.tombstonesRemoved} tombstones and ${result.collectionsRemoved} collections, " +
+                "reclaimed ${result.bytesReclaimed} bytes")
+    }
+
+    private fun isIdleOrCharging(context: Context): Boolean {
+        val battery = context.registerReceiver(null, IntentFilter(Intent.ACTION_BATTERY_CHANGED))
+        val plugged = battery?.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) ?: 0
+        if (plugged != 0) {
+            return true
+        }
+
+        val powerManager = context.getSystemService(Context.POWER_SERVICE) as PowerManager
+        return !powerManager.isInteractive
+    }
+}
@@ -13,6 +13,7 @@ import android.content.Context
 import android.content.SyncResult
 import android.os.Build
 import android.os.Bundle
+import at.bitfire.ical4android.BatchOperation
 import at.bitfire.ical4android.CalendarStorageException
 import at.bitfire.ical4android.Event
 import at.bitfire.ical4android.InvalidCalendarException
@@ -38,7 +39,7 @@ import java.io.StringReader
  * Synchronization manager for CardDAV collections; handles contacts and groups.
  */
 class CalendarSyncManager @Throws(Exceptions.IntegrityException::class, Exceptions.GenericCryptoException::class)
-constructor(context: Context, account: Account, settings: AccountSettings, extras: Bundle, authority: String, result: SyncResult, calendar: LocalCalendar, private val remote: HttpUrl) : SyncManager<LocalEvent>(context, account, settings, extras, authority, result, calendar.name!!, CollectionInfo.Type.CALENDAR, account.name) {
+constructor(context: Context, account: Account, settings: AccountSettings, extras: Bundle, authority: String, result: SyncResult, calendar: LocalCalendar, private val remote: HttpUrl) : SyncManager<LocalEvent, Event>(context, account, settings, extras, authority, result, calendar.name!!, CollectionInfo.Type.CALENDAR, account.name) {
 
     override val syncErrorTitle: String
         get() = context.getString(R.string.sync_error_calendar, account.name)
@@ -47,6 +48,8 @@ constructor(context: Context, account: Account, settings: AccountSettings, extra
         get() = context.getString(R.string.sync_successfully_calendar, localCalendar().displayName,
                 account.name)
 
+    private var pageBatch: BatchOperation? = null
+
     init {
         localCollection = calendar
     }
@@ -74,32 +77,50 @@ constructor(context: Context, account: Account, settings: AccountSettings, extra
     }
 
 
+    override fun beginPageBatch() {
+        pageBatch = BatchOperation(localCalendar().provider)
+    }
+
+    override fun commitPageBatch(): Int {
+        val ops = pageBatch?.commit() ?: 0
+        pageBatch = null
+        return ops
+    }
+
+
     // helpers
 
     private fun localCalendar(): LocalCalendar {
         return localCollection as LocalCalendar
     }
 
-    override fun processItem(item: Item) {
-        val local = localCollection!!.findByFilename(item.uid)
+    override fun decodeItem(itemUid: String, content: ByteArray): Event? {
+        val inputReader = StringReader(String(content))
 
-        if (!item.isDeleted) {
-            val inputReader = StringReader(String(item.content))
+        val events = Event.eventsFromReader(inputReader)
+        if (events.size == 0) {
+            Logger.log.warning("Received VCard without data, ignoring")
+            return null
+        } else if (events.size > 1) {
+            Logger.log.warning("Received multiple VCALs, using first one")
+        }
 
-            val events = Event.eventsFromReader(inputReader)
-            if (events.size == 0) {
-                Logger.log.warning("Received VCard without data, ignoring")
-                return
-            } else if (events.size > 1) {
-                Logger.log.warning("Received multiple VCALs, using first one")
-            }
+        return events[0]
+    }
+
+    override fun processItem(item: Item, decoded: Event?) {
+        val batch = checkNotNull(pageBatch) { "Items are only processed within a page batch" }
+        val local = findLocalByFilename(item.uid)
 
-            val event = events[0]
-            processEvent(item, event, local)
+        if (!item.isDeleted) {
+            if (decoded != null) {
+                processEvent(item, decoded, local, batch)
+            }
         } else {
             if (local != null) {
                 Logger.log.info("Removing local record #" + local.id + " which has been deleted on the server")
-                local.delete()
+                local.enqueueDelete(batch)
+                localIndex?.remove(item.uid)
             } else {
                 Logger.log.warning("Tried deleting a non-existent record: " + item.uid)
             }
@@ -167,18 +188,21 @@ constructor(context: Context, account: Account, settings: AccountSettings, extra
         }
     }
 
-    private fun processEvent(item: Item, newData: Event, _localEvent: LocalEvent?): LocalEvent {
+    private fun processEvent(item: Item, newData: Event, _localEvent: LocalEvent?, batch: BatchOperation): LocalEvent {
         var localEvent = _localEvent
         // delete local event, if it exists
         if (localEvent != null) {
             Logger.log.info("Updating " + newData.uid + " in local calendar")
             localEvent.eTag = item.etag
-            localEvent.update(newData)
+            localEvent.enqueueUpdate(newData, batch)
+            // the event is re-inserted, so its new row id is only known after the batch is committed
+            localIndex?.putUnindexed(item.uid)
             syncResult.stats.numUpdates++
         } else {
             Logger.log.info("Adding " + newData.uid + " to local calendar")
             localEvent = LocalEvent(localCalendar(), newData, item.uid, item.etag)
-            localEvent.add()
+            localEvent.enqueueAdd(batch)
+            localIndex?.putUnindexed(item.uid)
             syncResult.stats.numInserts++
         }
 
@@ -44,10 +44,14 @@ class CalendarsSyncAdapterService : SyncAdapterService() {
 
             val principal = settings.uri?.toHttpUrlOrNull()!!
 
-            for (calendar in AndroidCalendar.find(account, provider, LocalCalendar.Factory, CalendarContract.Calendars.SYNC_EVENTS + "!=0", null)) {
-                Logger.log.info("Synchronizing calendar #" + calendar.id + ", URL: " + calendar.name)
-                CalendarSyncManager(context, account, settings, extras, authority, syncResult, calendar, principal).use {
-                    it.performSync()
+            val calendars = AndroidCalendar.find(account, provider, LocalCalendar.Factory, CalendarContract.Calendars.SYNC_EVENTS + "!=0", null)
+            CollectionSyncExecutor(settings.syncConcurrency).syncAll(calendars, syncResult) { found, calendarSyncResult ->
+                withProviderClient(authority) { client ->
+                    val calendar = AndroidCalendar.findByID(account, client, LocalCalendar.Factory, found.id)
+                    Logger.log.info("Synchronizing calendar #" + calendar.id + ", URL: " + calendar.name)
+                    CalendarSyncManager(context, account, settings, extras, authority, calendarSyncResult, calendar, principal).use {
+                        it.performSync()
+                    }
                 }
             }
 
@@ -58,13 +62,10 @@ class CalendarsSyncAdapterService : SyncAdapterService() {
             val remote = HashMap<String, CachedCollection>()
             val etebaseLocalCache = EtebaseLocalCache.getInstance(context, account.name)
             val collections: List<CachedCollection>
-            synchronized(etebaseLocalCache) {
-                val httpClient = HttpClient.Builder(context, settings).setForeground(false).build()
-                val etebase = EtebaseLocalCache.getEtebase(context, httpClient.okHttpClient, settings)
-                val colMgr = etebase.collectionManager
+            val etebase = EtebaseLocalCache.getEtebase(context, settings)
+            val colMgr = etebase.collectionManager
 
-                collections = etebaseLocalCache.collectionList(colMgr).filter { it.collectionType == Constants.ETEBASE_TYPE_CALENDAR }
-            }
+            collections = etebaseLocalCache.collectionList(colMgr).filter { it.collectionType == Constants.ETEBASE_TYPE_CALENDAR }
 
             for (collection in collections) {
                 remote[collection.col.uid] = collection
@@ -0,0 +1,120 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter.syncadapter
+
+import android.content.SyncResult
+import com.etesync.syncadapter.log.Logger
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.logging.Level
+
+/**
+ * Synchronizes the collections of an account with up to [concurrency] of them at the same time.
+ *
+ * Every collection gets its own [SyncResult] which is merged into the result of the whole sync once the
+ * collection is done, so the sync managers don't need to share (and synchronize on) a single one.
+ *
+ * An exception thrown by [syncAll]'s sync function is passed on to the caller in both cases. When running
+ * concurrently, the other collections are finished first and the first exception is rethrown.
+ */
+class CollectionSyncExecutor(private val concurrency: Int) {
+
+    fun <C> syncAll(collections: List<C>, syncResult: SyncResult, sync: (C, SyncResult) -> Unit) {
+        syncAll(collections, syncResult, { SyncResult() }, ::merge, { it.fullSyncRequested = true }, sync)
+    }
+
+    /**
+     * [syncAll] for any kind of result: [newResult] creates the result of a collection, which is [merge]d into
+     * [syncResult], and [cancelled] marks [syncResult] when the sync was cancelled. (Separate so it can be tested
+     * without [SyncResult], which is just a stub in unit tests.)
+     */
+    internal fun <C, R : Any> syncAll(collections: List<C>, syncResult: R, newResult: () -> R, merge: (R, R) -> Unit,
+                                      cancelled: (R) -> Unit, sync: (C, R) -> Unit) {
+        val threads = Math.min(concurrency, collections.size)
+        if (threads <= 1) {
+            for (collection in collections) {
+                if (Thread.interrupted()) {
+                    cancelled(syncResult)
+                    return
+                }
+                sync(collection, syncResult)
+            }
+            return
+        }
+
+        Logger.log.info("Synchronizing ${collections.size} collections, $threads at a time")
+        val executor = Executors.newFixedThreadPool(threads)
+        try {
+            val futures: List<Future<*>> = collections.map { collection ->
+                executor.submit(Runnable {
+                    val collectionResult = newResult()
+                    try {
+                        sync(collection, collectionResult)
+                    } finally {
+                        synchronized(syncResult) {
+                            merge(syncResult, collectionResult)
+                        }
+                    }
+                })
+            }
+
+            var failure: Throwable? = null
+            for (future in futures) {
+                try {
+                    future.get()
+                } catch (e: ExecutionException) {
+                    val cause = e.cause ?: e
+                    if (failure == null) {
+                        failure = cause
+                    } else {
+                        Logger.log.log(Level.SEVERE, "Couldn't synchronize collection", cause)
+                    }
+                }
+            }
+            // Let the caller handle the failure like in the sequential case (notifications, backoff, …)
+            failure?.let { throw it }
+        } catch (e: InterruptedException) {
+            // Sync was cancelled: stop the running collections and wait for them to wind down
+            executor.shutdownNow()
+            executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)
+            synchronized(syncResult) {
+                cancelled(syncResult)
+            }
+            Thread.currentThread().interrupt()
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    private fun merge(into: SyncResult, from: SyncResult) {
+        into.stats.numAuthExceptions += from.stats.numAuthExceptions
+        into.stats.numIoExceptions += from.stats.numIoExceptions
+        into.stats.numParseExceptions += from.stats.numParseExceptions
+        into.stats.numConflictDetectedExceptions += from.stats.numConflictDetectedExceptions
+        into.stats.numInserts += from.stats.numInserts
+        into.stats.numUpdates += from.stats.numUpdates
+        into.stats.numDeletes += from.stats.numDeletes
+        into.stats.numEntries += from.stats.numEntries
+        into.stats.numSkippedEntries += from.stats.numSkippedEntries
+
+        into.tooManyDeletions = into.tooManyDeletions || from.tooManyDeletions
+        into.tooManyRetries = into.tooManyRetries || from.tooManyRetries
+        into.databaseError = into.databaseError || from.databaseError
+        into.fullSyncRequested = into.fullSyncRequested || from.fullSyncRequested
+        into.partialSyncUnavailable = into.partialSyncUnavailable || from.partialSyncUnavailable
+        into.moreRecordsToGet = into.moreRecordsToGet || from.moreRecordsToGet
+        into.delayUntil = Math.max(into.delayUntil, from.delayUntil)
+    }
+
+    companion object {
+        private const val SHUTDOWN_TIMEOUT: Long = 10
+    }
+}
@@ -29,14 +29,16 @@ import com.etesync.syncadapter.model.CollectionInfo
 import com.etesync.syncadapter.resource.LocalAddress
 import com.etesync.syncadapter.resource.LocalAddressBook
 import com.etesync.syncadapter.resource.LocalContact
+import com.etesync.syncadapter.resource.LocalFilenameIndex
 import com.etesync.syncadapter.resource.LocalGroup
 import okhttp3.HttpUrl
 import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
-import okhttp3.Request
 import org.apache.commons.collections4.SetUtils
 import java.io.FileNotFoundException
 import java.io.IOException
 import java.io.StringReader
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import java.util.logging.Level
 
 /**
@@ -44,8 +46,15 @@ import java.util.logging.Level
  * Synchronization manager for CardDAV collections; handles contacts and groups.
  */
 class ContactsSyncManager @Throws(Exceptions.IntegrityException::class, Exceptions.GenericCryptoException::class, ContactsStorageException::class)
-constructor(context: Context, account: Account, settings: AccountSettings, extras: Bundle, authority: String, private val provider: ContentProviderClient, result: SyncResult, localAddressBook: LocalAddressBook, private val remote: HttpUrl) : SyncManager<LocalAddress>(context, account, settings, extras, authority, result, localAddressBook.url, CollectionInfo.Type.ADDRESS_BOOK, localAddressBook.mainAccount.name) {
+constructor(context: Context, account: Account, settings: AccountSettings, extras: Bundle, authority: String, private val provider: ContentProviderClient, result: SyncResult, localAddressBook: LocalAddressBook, private val remote: HttpUrl) : SyncManager<LocalAddress, Contact>(context, account, settings, extras, authority, result, localAddressBook.url, CollectionInfo.Type.ADDRESS_BOOK, localAddressBook.mainAccount.name) {
     private val resourceDownloader: ResourceDownloader
+    /** photos referenced by decoded items, by item UID; they are downloaded when the item is processed */
+    private val pendingPhotos = ConcurrentHashMap<String, PhotoReference>()
+
+    private var pageBatch: BatchOperation? = null
+    private val pageHashUpdates = LinkedList<LocalContact>()
+    /** contacts inserted by the page batch, whose data rows are inserted once their row IDs are known */
+    private val pageContactInserts = LinkedList<LocalContact>()
 
     protected override val syncErrorTitle: String
         get() = context.getString(R.string.sync_error_contacts, account.name)
@@ -124,32 +133,82 @@ constructor(context: Context, account: Account, settings: AccountSettings, extra
     }
 
 
+    override fun beginPageBatch() {
+        pageBatch = BatchOperation(localAddressBook().provider!!)
+        pageContactInserts.clear()
+        pageHashUpdates.clear()
+    }
+
+    override fun commitPageBatch(): Int {
+        val batch = pageBatch ?: return 0
+        var ops = batch.commit()
+        pageBatch = null
+
+        if (pageContactInserts.isNotEmpty()) {
+            // the data rows refer to the row IDs of the new raw contacts, so they need a second batch
+            val addressBook = localAddressBook()
+            val ids = addressBook.findContactIds(pageContactInserts.map { it.fileName!! })
+            val dataBatch = BatchOperation(addressBook.provider!!)
+            for (contact in pageContactInserts) {
+                val id = ids[contact.fileName] ?: throw ContactsStorageException("Couldn't find added contact ${contact.fileName}")
+                contact.enqueueDataRows(id, dataBatch)
+            }
+            ops += dataBatch.commit()
+            pageContactInserts.clear()
+        }
+
+        // workaround for Android 7 which sets DIRTY flag when only meta-data is changed
+        // (has to happen after the commit, because the hash is calculated from the stored data)
+        for (contact in pageHashUpdates) {
+            contact.updateHashCode(null)
+        }
+        pageHashUpdates.clear()
+        return ops
+    }
+
+
     // helpers
 
     private fun localAddressBook(): LocalAddressBook {
         return localCollection as LocalAddressBook
     }
 
-    override fun processItem(item: Item) {
-        val local = localCollection!!.findByFilename(item.uid)
+    override fun decodeItem(itemUid: String, content: ByteArray): Contact? {
+        val inputReader = StringReader(String(content))
+
+        // don't download photos on the decode pool, it's for parsing only
+        val photo = PhotoReference()
+        val contacts = Contact.fromReader(inputReader, photo)
+        if (contacts.size == 0) {
+            Logger.log.warning("Received VCard without data, ignoring")
+            return null
+        } else if (contacts.size > 1) {
+            Logger.log.warning("Received multiple VCALs, using first one")
+        }
+
+        if (photo.url != null) {
+            pendingPhotos[itemUid] = photo
+        }
+        return contacts[0]
+    }
+
+    override fun processItem(item: Item, decoded: Contact?) {
+        val batch = checkNotNull(pageBatch) { "Items are only processed within a page batch" }
+        val local = findLocalByFilename(item.uid)
+        val photo = pendingPhotos.remove(item.uid)
 
         if (!item.isDeleted) {
-            val inputReader = StringReader(String(item.content))
-
-            val contacts = Contact.fromReader(inputReader, resourceDownloader)
-            if (contacts.size == 0) {
-                Logger.log.warning("Received VCard without data, ignoring")
-                return
-            } else if (contacts.size > 1) {
-                Logger.log.warning("Received multiple VCALs, using first one")
+            if (decoded != null) {
+                if (photo != null) {
+                    decoded.photo = resourceDownloader.download(photo.url!!, photo.accepts!!)
+                }
+                processContact(item, decoded, local, batch)
             }
-
-            val contact = contacts[0]
-            processContact(item, contact, local)
         } else {
             if (local != null) {
                 Logger.log.info("Removing local record which has been deleted on the server")
-                local.delete()
+                local.enqueueDelete(batch)
+                localIndex?.remove(item.uid)
             } else {
                 Logger.log.warning("Tried deleting a non-existent record: " + item.uid)
             }
@@ -182,7 +241,7 @@ constructor(context: Context, account: Account, settings: AccountSettings, extra
         }
     }
 
-    private fun processContact(item: Item, newData: Contact, _local: LocalAddress?): LocalAddress {
+    private fun processContact(item: Item, newData: Contact, _local: LocalAddress?, batch: BatchOperation): LocalAddress {
         var local = _local
         val uuid = newData.uid
         // update local contact, if it exists
@@ -193,48 +252,46 @@ constructor(context: Context, account: Account, settings: AccountSettings, extra
                 // update group
                 val group: LocalGroup = local
                 group.eTag = item.etag
-                group.update(newData)
+                group.enqueueUpdate(newData, batch)
+                localIndex?.put(item.uid, LocalFilenameIndex.Entry(group.id!!, item.etag, true))
                 syncResult.stats.numUpdates++
 
             } else if (local is LocalContact && !newData.group) {
                 // update contact
                 val contact: LocalContact = local
                 contact.eTag = item.etag
-                contact.update(newData)
+                contact.enqueueUpdate(newData, batch)
+                localIndex?.put(item.uid, LocalFilenameIndex.Entry(contact.id!!, item.etag))
                 syncResult.stats.numUpdates++
 
             } else {
-                // group has become an individual contact or vice versa
-                try {
-                    local.delete()
-                    local = null
-                } catch (e: CalendarStorageException) {
-                    // CalendarStorageException is not used by LocalGroup and LocalContact
-                }
-
+                // group has become an individual contact or vice versa; the replacement is inserted by the same
+                // batch, so that both are committed (or rolled back) together
+                local.enqueueDelete(batch)
+                local = null
             }
         }
 
         if (local == null) {
             if (newData.group) {
                 Logger.log.log(Level.INFO, "Creating local group", item.uid)
-                val group = LocalGroup(localAddressBook(), newData, item.uid, item.etag)
-                group.add()
-
-                local = group
+                local = LocalGroup(localAddressBook(), newData, item.uid, item.etag)
             } else {
                 Logger.log.log(Level.INFO, "Creating local contact", item.uid)
-                val contact = LocalContact(localAddressBook(), newData, item.uid, item.etag)
-                contact.add()
-
-                local = contact
+                local = LocalContact(localAddressBook(), newData, item.uid, item.etag)
+            }
+            local.enqueueAdd(batch)
+            if (local is LocalContact) {
+                pageContactInserts += local
             }
+            // the row id is only known after the batch is committed
+            localIndex?.putUnindexed(item.uid)
             syncResult.stats.numInserts++
         }
 
         if (LocalContact.HASH_HACK && local is LocalContact)
         // workaround for Android 7 which sets DIRTY flag when only meta-data is changed
-            local.updateHashCode(null)
+            pageHashUpdates += local
 
         return local
     }
@@ -297,7 +354,23 @@ constructor(context: Context, account: Account, settings: AccountSettings, extra
         return local
     }
 
-    // downloader helper class
+    // downloader helper classes
+
+    /**
+     * Remembers the photo URL of a parsed VCard instead of downloading it.
+     */
+    private class PhotoReference : Contact.Downloader {
+        var url: String? = null
+        var accepts: String? = null
+
+        override fun download(url: String, accepts: String): ByteArray? {
+            if (this.url == null) {
+                this.url = url
+                this.accepts = accepts
+            }
+            return null
+        }
+    }
 
     class ResourceDownloader(internal var context: Context) : Contact.Downloader {
 
@@ -315,23 +388,7 @@ constructor(context: Context, account: Account, settings: AccountSettings, extra
                 return null
             }
 
-            val resourceClient = HttpClient.Builder(context).setForeground(false).build().okHttpClient
-
-            try {
-                val response = resourceClient.newCall(Request.Builder()
-                        .get()
-                        .url(httpUrl)
-                        .build()).execute()
-
-                val body = response.body
-                if (body != null) {
-                    return body.bytes()
-                }
-            } catch (e: IOException) {
-                Logger.log.log(Level.SEVERE, "Couldn't download external resource", e)
-            }
-
-            return null
+            return ResourceFetcher.fetch(context, httpUrl, accepts)
         }
     }
 
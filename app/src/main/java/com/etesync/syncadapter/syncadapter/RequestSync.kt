@@ -16,6 +16,9 @@ fun requestSync(context: Context, account: Account?) {
             TaskProviderHandling.getWantedTaskSyncProvider(context)?.authority
     )
 
+    // A manual sync should pick up new and removed collections right away
+    SyncAdapterService.invalidateCollections(account?.name)
+
     for (authority in authorities.filterNotNull()) {
         val extras = Bundle()
         extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true)        // manual sync
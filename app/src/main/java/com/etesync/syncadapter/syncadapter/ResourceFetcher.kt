@@ -0,0 +1,161 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter.syncadapter
+
+import android.content.Context
+import com.etesync.syncadapter.HttpClient
+import com.etesync.syncadapter.log.Logger
+import okhttp3.Cache
+import okhttp3.HttpUrl
+import okhttp3.Interceptor
+import okhttp3.Request
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.concurrent.*
+import java.util.logging.Level
+
+/**
+ * Downloads external resources referenced by vCards (like contact photos).
+ *
+ * - Responses are kept in a bounded disk cache keyed by URL. Responses without caching headers are considered
+ *   fresh for [DEFAULT_MAX_AGE] and revalidated (with their ETag / Last-Modified) afterwards.
+ * - Concurrent requests for the same URL are coalesced into a single download.
+ * - Downloads run on a small pool of their own, and resources larger than [MAX_RESOURCE_SIZE] are dropped.
+ */
+object ResourceFetcher {
+    private const val DISK_CACHE_MAX_SIZE: Long = 20 * 1024 * 1024
+    private const val MAX_RESOURCE_SIZE = 2 * 1024 * 1024
+    private const val DEFAULT_MAX_AGE = 7 * 24 * 3600
+    private const val THREADS = 2
+
+    private val executor = Executors.newFixedThreadPool(THREADS)
+    private val inFlight = ConcurrentHashMap<HttpUrl, Future<ByteArray?>>()
+
+    private var httpClient: HttpClient? = null
+    /** disk cache of the HTTP client, which is kept when the client is replaced */
+    private var cache: Cache? = null
+
+    private fun httpClient(context: Context): HttpClient {
+        synchronized(this) {
+            httpClient?.let { return it }
+
+            val builder = HttpClient.Builder(context.applicationContext)
+                    .setForeground(false)
+                    .addNetworkInterceptor(DefaultMaxAgeInterceptor)
+            val cache = cache
+            if (cache != null) {
+                builder.withCache(cache)
+            } else {
+                builder.withDiskCache("resources", DISK_CACHE_MAX_SIZE)
+            }
+            return builder.build().also {
+                httpClient = it
+                this.cache = it.okHttpClient.cache
+            }
+        }
+    }
+
+    /**
+     * Lets the next download use a new HTTP client, e.g. because the proxy or certificate settings changed. The old
+     * client isn't closed, as running downloads may still use it, and the new one shares its disk cache.
+     */
+    fun reset() {
+        synchronized(this) {
+            httpClient = null
+        }
+    }
+
+    /**
+     * Returns the resource at [url], or null if it couldn't be downloaded (or is too large).
+     */
+    fun fetch(context: Context, url: HttpUrl, accepts: String): ByteArray? {
+        val task = FutureTask { download(context, url, accepts) }
+        val existing = inFlight.putIfAbsent(url, task)
+        if (existing != null) {
+            Logger.log.fine("Waiting for download of $url in progress")
+            return await(existing)
+        }
+
+        try {
+            executor.execute(task)
+            return await(task)
+        } finally {
+            inFlight.remove(url, task)
+        }
+    }
+
+    private fun await(future: Future<ByteArray?>): ByteArray? {
+        return try {
+            future.get()
+        } catch (e: ExecutionException) {
+            Logger.log.log(Level.SEVERE, "Couldn't download external resource", e.cause)
+            null
+        }
+    }
+
+    private fun download(context: Context, url: HttpUrl, accepts: String): ByteArray? {
+        try {
+            httpClient(context).okHttpClient.newCall(Request.Builder()
+                    .get()
+                    .url(url)
+                    .header("Accept", accepts)
+                    .build()).execute().use { response ->
+                if (!response.isSuccessful) {
+                    Logger.log.warning("Couldn't download external resource $url: HTTP ${response.code}")
+                    return null
+                }
+                if (response.cacheResponse != null) {
+                    Logger.log.fine("Using cached $url")
+                }
+
+                val body = response.body ?: return null
+                if (body.contentLength() > MAX_RESOURCE_SIZE) {
+                    Logger.log.warning("Ignoring external resource $url of ${body.contentLength()} bytes")
+                    return null
+                }
+
+                val output = ByteArrayOutputStream()
+                val buffer = ByteArray(8192)
+                body.byteStream().use { input ->
+                    while (true) {
+                        val read = input.read(buffer)
+                        if (read < 0) {
+                            break
+                        }
+                        output.write(buffer, 0, read)
+                        if (output.size() > MAX_RESOURCE_SIZE) {
+                            Logger.log.warning("Ignoring external resource $url larger than $MAX_RESOURCE_SIZE bytes")
+                            return null
+                        }
+                    }
+                }
+                return output.toByteArray()
+            }
+        } catch (e: IOException) {
+            Logger.log.log(Level.SEVERE, "Couldn't download external resource", e)
+            return null
+        }
+    }
+
+    /**
+     * Makes responses without caching headers cacheable for a while, so that they are revalidated instead of
+     * downloaded again on every sync.
+     */
+    private object DefaultMaxAgeInterceptor : Interceptor {
+        override fun intercept(chain: Interceptor.Chain): okhttp3.Response {
+            val response = chain.proceed(chain.request())
+            if (response.header("Cache-Control") != null || response.header("Expires") != null) {
+                return response
+            }
+            return response.newBuilder()
+                    .header("Cache-Control", "max-age=$DEFAULT_MAX_AGE")
+                    .build()
+        }
+    }
+}
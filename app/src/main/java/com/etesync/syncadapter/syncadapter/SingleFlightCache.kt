@@ -0,0 +1,86 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter.syncadapter
+
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.FutureTask
+
+/**
+ * Loads a value per key at most once at a time: callers that ask for a key while it is being loaded wait for that
+ * load instead of starting their own. A loaded value is reused until it is older than [maxAge], the caller's
+ * validity check fails or it is [invalidate]d. Failed loads aren't kept.
+ */
+internal class SingleFlightCache<V>(private val maxAge: Long) {
+    private class Entry<V>(load: () -> V) {
+        /** set before the task completes, so it's there for whoever sees the task done */
+        @Volatile
+        var loadedAt: Long = 0
+
+        val task = FutureTask<V> {
+            load().also { loadedAt = System.currentTimeMillis() }
+        }
+    }
+
+    private val entries = HashMap<String, Entry<V>>()
+
+    fun get(key: String, isValid: (V) -> Boolean = { true }, load: () -> V): V {
+        // The validity check may be slow (e.g. read a file), so it's done without holding the lock
+        val existing = synchronized(entries) { entries[key] }
+        val reusable = existing != null && (!existing.task.isDone || isFresh(existing, isValid))
+
+        var owner = false
+        val entry = synchronized(entries) {
+            val current = entries[key]
+            if (current != null && (current !== existing || reusable)) {
+                // Either the entry that was checked, or one that another caller started meanwhile
+                current
+            } else {
+                owner = true
+                Entry(load).also { entries[key] = it }
+            }
+        }
+
+        if (owner) {
+            entry.task.run()
+        }
+
+        try {
+            return entry.task.get()
+        } catch (e: ExecutionException) {
+            synchronized(entries) {
+                entries.remove(key, entry)
+            }
+            throw e.cause ?: e
+        }
+    }
+
+    fun invalidate(key: String) {
+        synchronized(entries) {
+            // A load in progress is left to finish for the callers waiting for it
+            entries.remove(key)
+        }
+    }
+
+    fun invalidateAll() {
+        synchronized(entries) {
+            entries.clear()
+        }
+    }
+
+    private fun isFresh(entry: Entry<V>, isValid: (V) -> Boolean): Boolean {
+        if (entry.loadedAt == 0L || Math.abs(System.currentTimeMillis() - entry.loadedAt) > maxAge) {
+            return false
+        }
+        return try {
+            isValid(entry.task.get())
+        } catch (e: ExecutionException) {
+            false
+        }
+    }
+}
@@ -39,7 +39,6 @@ import com.etesync.syncadapter.ui.DebugInfoActivity
 import com.etesync.syncadapter.ui.PermissionsActivity
 import com.etesync.syncadapter.utils.NotificationUtils
 import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
-import java.lang.Math.abs
 import java.util.*
 import java.util.logging.Level
 
@@ -48,7 +47,7 @@ import java.util.logging.Level
 typealias JournalList = List<Pair<JournalManager.Journal, CollectionInfo>>
 
 class CachedJournalFetcher {
-    private val cache: HashMap<String, Pair<Long, JournalList>> = HashMap()
+    private val cache = SingleFlightCache<JournalList>(SyncAdapterService.COLLECTIONS_MAX_AGE)
 
     private fun fetchJournals(journalsManager: JournalManager, settings: AccountSettings, serviceType: CollectionInfo.Type): JournalList {
         val journals = LinkedList<Pair<JournalManager.Journal, CollectionInfo>>()
@@ -73,22 +72,21 @@ class CachedJournalFetcher {
     }
 
     fun list(journalsManager: JournalManager, settings: AccountSettings, serviceType: CollectionInfo.Type): JournalList {
-        val cacheAge = 5 * 1000 // 5 seconds - it's just a hack for burst fetching
-        val now = System.currentTimeMillis()
-
-        val journals: JournalList
-        synchronized (cache) {
-            val cached = cache.get(settings.account.name)
-            if ((cached != null) && (abs(now - cached.first!!) <= cacheAge)) {
-                journals = cached.second!!
-            } else {
-                journals = fetchJournals(journalsManager, settings, serviceType)
-                cache.set(settings.account.name, Pair(System.currentTimeMillis(), journals))
-            }
+        // The journals of all types are fetched at once, so the syncs of the other types can use them
+        val journals = cache.get(settings.account.name) {
+            fetchJournals(journalsManager, settings, serviceType)
         }
 
         return journals.filter { it.second?.enumType == serviceType }
     }
+
+    fun invalidate(accountName: String) {
+        cache.invalidate(accountName)
+    }
+
+    fun invalidateAll() {
+        cache.invalidateAll()
+    }
 }
 
 abstract class SyncAdapterService : Service() {
@@ -113,20 +111,34 @@ abstract class SyncAdapterService : Service() {
 
             notificationManager.cancel()
 
+            val server = SyncBackoff.server(context, account)
+            if (!extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL)) {
+                val suspendedUntil = SyncBackoff.circuitOpenUntil(context, account, server)
+                if (suspendedUntil > 0) {
+                    Logger.log.info("Syncs with $server are suspended for another ${suspendedUntil - System.currentTimeMillis() / 1000} s, skipping")
+                    syncResult.stats.numIoExceptions++
+                    syncResult.delayUntil = suspendedUntil
+                    return
+                }
+            }
+
             try {
                 onPerformSyncDo(account, extras, authority, provider, syncResult)
+
+                if (!syncResult.hasError()) {
+                    SyncBackoff.onSuccess(context, account, server)
+                    CacheCompaction.runIfDue(context, account)
+                    EtebaseCacheWarmUp.schedule(context)
+                }
             } catch (e: SecurityException) {
                 // Shouldn't be needed - not sure why it doesn't fail
                 onSecurityException(account, extras, authority, syncResult)
             } catch (e: Exceptions.ServiceUnavailableException) {
-                syncResult.stats.numIoExceptions++
-                syncResult.delayUntil = if (e.retryAfter > 0) e.retryAfter else Constants.DEFAULT_RETRY_DELAY
+                SyncBackoff.markFailure(syncResult, e.retryAfter)
             } catch (e: TemporaryServerErrorException) {
-                syncResult.stats.numIoExceptions++
-                syncResult.delayUntil = Constants.DEFAULT_RETRY_DELAY
+                SyncBackoff.markFailure(syncResult)
             } catch (e: ConnectionException) {
-                syncResult.stats.numIoExceptions++
-                syncResult.delayUntil = Constants.DEFAULT_RETRY_DELAY
+                SyncBackoff.markFailure(syncResult)
             } catch (e: Exceptions.IgnorableHttpException) {
                 // Ignore
             } catch (e: Exception) {
@@ -156,6 +168,23 @@ abstract class SyncAdapterService : Service() {
                 detailsIntent.putExtra(Constants.KEY_ACCOUNT, account)
                 notificationManager.notify(title, context.getString(syncPhase))
             }
+
+            // Temporary failures of the sync and of its collections are all recorded here, once per sync
+            SyncBackoff.reportFailure(context, account, server, syncResult)
+        }
+
+        /**
+         * Runs [block] with a [ContentProviderClient] of its own, as collections may be synchronized on worker
+         * threads and a client shouldn't be shared between threads.
+         */
+        protected fun <R> withProviderClient(authority: String, block: (ContentProviderClient) -> R): R {
+            val client = context.contentResolver.acquireContentProviderClient(authority)
+                    ?: throw SecurityException("Couldn't acquire content provider for $authority")
+            try {
+                return block(client)
+            } finally {
+                client.release()
+            }
         }
 
         override fun onSecurityException(account: Account, extras: Bundle, authority: String, syncResult: SyncResult) {
@@ -245,17 +274,14 @@ abstract class SyncAdapterService : Service() {
                 }
 
                 val etebaseLocalCache = EtebaseLocalCache.getInstance(context, account.name)
-                synchronized(etebaseLocalCache) {
-                    val cacheAge = 5 * 1000 // 5 seconds - it's just a hack for burst fetching
-                    val now = System.currentTimeMillis()
-                    val lastCollectionsFetch = collectionLastFetchMap[account.name] ?: 0
+                val colMgr = EtebaseLocalCache.getEtebase(context, settings).collectionManager
 
-                    if (abs(now - lastCollectionsFetch) <= cacheAge) {
-                        return@synchronized
-                    }
+                // Apply a changed item store setting before the sync reads or writes any cached items
+                etebaseLocalCache.useItemStore(colMgr, settings.cacheItemStore)
 
-                    val etebase = EtebaseLocalCache.getEtebase(context, httpClient.okHttpClient, settings)
-                    val colMgr = etebase.collectionManager
+                // Concurrent refreshes of the account (by the other authorities) share a single fetch, and its
+                // result is used as long as nobody else changed the collections in the cache
+                collectionRefreshes.get(account.name, { stoken -> stoken == etebaseLocalCache.loadStoken() }) {
                     var stoken = etebaseLocalCache.loadStoken()
                     var done = false
                     while (!done) {
@@ -274,7 +300,7 @@ abstract class SyncAdapterService : Service() {
                             etebaseLocalCache.saveStoken(stoken)
                         }
                     }
-                    collectionLastFetchMap[account.name] = now
+                    stoken
                 }
 
                 httpClient.close()
@@ -317,7 +343,24 @@ abstract class SyncAdapterService : Service() {
     }
 
     companion object {
+        /** how long a refreshed collection list is used before asking the server again [ms] */
+        internal const val COLLECTIONS_MAX_AGE: Long = 30 * 1000
+
         val journalFetcher = CachedJournalFetcher()
-        var collectionLastFetchMap = HashMap<String, Long>()
+        /** the stoken of the last collection list refresh of each account */
+        private val collectionRefreshes = SingleFlightCache<String?>(COLLECTIONS_MAX_AGE)
+
+        /**
+         * Makes the next sync of the account (or of all accounts if null) fetch the collection list again.
+         */
+        fun invalidateCollections(accountName: String?) {
+            if (accountName != null) {
+                journalFetcher.invalidate(accountName)
+                collectionRefreshes.invalidate(accountName)
+            } else {
+                journalFetcher.invalidateAll()
+                collectionRefreshes.invalidateAll()
+            }
+        }
     }
 }
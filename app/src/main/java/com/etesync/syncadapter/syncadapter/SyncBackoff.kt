@@ -0,0 +1,289 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter.syncadapter
+
+import android.accounts.Account
+import android.content.Context
+import android.content.SyncResult
+import com.etesync.syncadapter.AccountSettings
+import com.etesync.syncadapter.log.Logger
+import okhttp3.Interceptor
+import okhttp3.Response
+import java.util.*
+
+/**
+ * Decides how long to wait before syncing again after a temporary failure (server errors, connection problems). The
+ * results are points in time (in seconds since the epoch), as expected by [android.content.SyncResult.delayUntil].
+ *
+ * - The delay grows exponentially with the consecutive failures of the account and of its server, and is jittered
+ *   so that devices which failed at the same time (e.g. during a server outage) don't retry at the same time.
+ * - Retry-After hints of the server are honored, whether they come with the exception or were seen by [interceptor].
+ * - After [CIRCUIT_THRESHOLD] failures of a server, no automatic syncs with it are started (see [circuitOpenUntil])
+ *   until the delay elapsed. The first sync after that tries again, and a success resets everything.
+ *
+ * Sync managers only [markFailure] the results of their collections, the failure of the whole sync is recorded once
+ * by [reportFailure]. The state of an account and of its server is kept in the account's settings, so the backoff
+ * survives restarts of the app. Every account keeps its own copy of its server's state, the newest one wins when
+ * the app is started again.
+ */
+object SyncBackoff {
+    /** backoff after the first failure [s] */
+    private const val MIN_DELAY: Long = 5 * 60
+    /** max. backoff [s] */
+    private const val MAX_DELAY: Long = 6 * 3600
+    /** max. delay we accept from a Retry-After header [s] */
+    private const val MAX_RETRY_AFTER: Long = 24 * 3600
+    /** failures closer together than this (e.g. of several collections or authorities) count once [ms] */
+    private const val MIN_FAILURE_INTERVAL: Long = 60 * 1000
+    private const val CIRCUIT_THRESHOLD = 4
+
+    private class State {
+        var failures = 0
+        var lastFailure: Long = 0
+        /** when the server allowed us to try again [ms] */
+        var retryAfterUntil: Long = 0
+        /** until when no automatic syncs are started [ms] */
+        var openUntil: Long = 0
+    }
+
+    private val accounts = HashMap<String, State>()
+    private val servers = HashMap<String, State>()
+    /** accounts whose persisted state was restored already */
+    private val restored = HashSet<String>()
+    private val random = Random()
+
+    /**
+     * Remembers the Retry-After hints of responses, as the etebase exceptions don't carry them.
+     */
+    val interceptor = object : Interceptor {
+        override fun intercept(chain: Interceptor.Chain): Response {
+            val response = chain.proceed(chain.request())
+            if (response.code == 429 || response.code == 503) {
+                retryAfter(response)?.let { retryAfter ->
+                    synchronized(this@SyncBackoff) {
+                        val state = servers.getOrPut(chain.request().url.host) { State() }
+                        state.retryAfterUntil = System.currentTimeMillis() + Math.min(retryAfter, MAX_RETRY_AFTER) * 1000
+                    }
+                }
+            }
+            return response
+        }
+    }
+
+    /**
+     * Parses the Retry-After header (either in seconds or an HTTP date) into seconds from now.
+     */
+    private fun retryAfter(response: Response): Long? {
+        val value = response.header("Retry-After") ?: return null
+        value.trim().toLongOrNull()?.let { return it }
+        val date = response.headers.getDate("Retry-After") ?: return null
+        return Math.max((date.time - System.currentTimeMillis()) / 1000, 0)
+    }
+
+    fun server(context: Context, account: Account): String? {
+        return try {
+            AccountSettings(context, account).uri?.host
+        } catch (e: Exception) {
+            null
+        }
+    }
+
+    private fun settings(context: Context, account: Account): AccountSettings? {
+        return try {
+            AccountSettings(context, account)
+        } catch (e: Exception) {
+            Logger.log.warning("Couldn't access the backoff state of $account: $e")
+            null
+        }
+    }
+
+    /**
+     * Restores the persisted state of [account] and its [server] the first time the account is seen. Call while
+     * synchronized.
+     */
+    private fun restore(settings: AccountSettings?, account: Account, server: String?) {
+        if (settings != null && restored.add(account.name)) {
+            restore(account.name, settings.syncBackoff, server, settings.serverBackoff, System.currentTimeMillis())
+        }
+    }
+
+    private fun persist(settings: AccountSettings?, account: Account, server: String?) {
+        if (settings != null) {
+            val (accountState, serverState) = persisted(account.name, server)
+            settings.syncBackoff = accountState
+            settings.serverBackoff = serverState
+        }
+    }
+
+    /**
+     * Marks [syncResult] (of the whole sync or of a collection) as failed temporarily, with the delay requested
+     * by the server ([retryAfter] s, or 0) in its delayUntil. The failure is recorded by [reportFailure].
+     */
+    fun markFailure(syncResult: SyncResult, retryAfter: Long = 0) {
+        syncResult.stats.numIoExceptions++
+        syncResult.delayUntil = Math.max(syncResult.delayUntil, System.currentTimeMillis() / 1000 + retryAfter)
+    }
+
+    /**
+     * Records the temporary failure [markFailure]d in the [syncResult] of a whole sync, if there is one, and
+     * replaces its delayUntil with until when to wait before the next sync.
+     */
+    fun reportFailure(context: Context, account: Account, server: String?, syncResult: SyncResult) {
+        if (syncResult.delayUntil <= 0) {
+            return
+        }
+        val now = System.currentTimeMillis()
+        val settings = settings(context, account)
+        synchronized(this) {
+            restore(settings, account, server)
+            syncResult.delayUntil = onFailure(account.name, server, Math.max(syncResult.delayUntil - now / 1000, 0), now)
+            persist(settings, account, server)
+        }
+    }
+
+    internal fun onFailure(accountName: String, server: String?, retryAfter: Long, now: Long): Long {
+        synchronized(this) {
+            val accountState = accounts.getOrPut(accountName) { State() }
+            val serverState = server?.let { servers.getOrPut(it) { State() } }
+            for (state in listOfNotNull(accountState, serverState)) {
+                if (Math.abs(now - state.lastFailure) >= MIN_FAILURE_INTERVAL) {
+                    state.failures++
+                }
+                state.lastFailure = now
+            }
+
+            val failures = Math.max(accountState.failures, serverState?.failures ?: 0)
+            val backoff = Math.min(MAX_DELAY, MIN_DELAY shl Math.min(failures - 1, 16))
+            // Somewhere between half of the backoff and the full backoff
+            var delay = backoff / 2 + (random.nextDouble() * backoff / 2).toLong()
+
+            var retryAfterUntil = serverState?.retryAfterUntil ?: 0
+            if (retryAfter > 0) {
+                retryAfterUntil = Math.max(retryAfterUntil, now + Math.min(retryAfter, MAX_RETRY_AFTER) * 1000)
+            }
+            if (retryAfterUntil > now) {
+                val hint = (retryAfterUntil - now) / 1000
+                // Everybody got the same hint, so spread the retries a bit after it
+                delay = Math.max(delay, hint + (random.nextDouble() * hint / 10).toLong())
+            }
+
+            if (serverState != null && serverState.failures >= CIRCUIT_THRESHOLD) {
+                serverState.openUntil = now + delay * 1000
+                Logger.log.warning("$server failed ${serverState.failures} times, suspending syncs for $delay s")
+            }
+
+            Logger.log.info("Retrying sync of $accountName in $delay s (failures: $failures)")
+            return now / 1000 + delay
+        }
+    }
+
+    fun onSuccess(context: Context, account: Account, server: String?) {
+        val settings = settings(context, account)
+        synchronized(this) {
+            restore(settings, account, server)
+            if (accounts.containsKey(account.name) || server != null && servers.containsKey(server)) {
+                onSuccess(account.name, server)
+                persist(settings, account, server)
+            }
+        }
+    }
+
+    internal fun onSuccess(accountName: String, server: String?) {
+        synchronized(this) {
+            accounts.remove(accountName)
+            server?.let { servers.remove(it) }
+        }
+    }
+
+    /**
+     * Returns until when automatic syncs of [account] with [server] are suspended [s since the epoch], or 0 if
+     * they aren't.
+     */
+    fun circuitOpenUntil(context: Context, account: Account, server: String?): Long {
+        val settings = settings(context, account)
+        synchronized(this) {
+            restore(settings, account, server)
+            return circuitOpenUntil(server, System.currentTimeMillis())
+        }
+    }
+
+    internal fun circuitOpenUntil(server: String?, now: Long): Long {
+        synchronized(this) {
+            val state = server?.let { servers[it] } ?: return 0
+            return if (state.openUntil > now) (state.openUntil + 999) / 1000 else 0
+        }
+    }
+
+    /**
+     * Returns the state of [accountName] and of its [server] as it's persisted (null if there were no failures).
+     */
+    internal fun persisted(accountName: String, server: String?): Pair<String?, String?> {
+        synchronized(this) {
+            val serverState = server?.let { servers[it] }?.let { "$server ${encode(it)}" }
+            return Pair(accounts[accountName]?.let { encode(it) }, serverState)
+        }
+    }
+
+    /**
+     * Restores the [persisted] state of [accountName] and its [server]. A server state that was persisted for
+     * another server is ignored, as well as states whose last failure is so long ago that they're outdated.
+     */
+    internal fun restore(accountName: String, accountState: String?, server: String?, serverState: String?, now: Long) {
+        synchronized(this) {
+            decode(accountState, now)?.let { state ->
+                if (!accounts.containsKey(accountName)) {
+                    accounts[accountName] = state
+                }
+            }
+            if (server != null && serverState != null && serverState.substringBefore(' ') == server) {
+                decode(serverState.substringAfter(' '), now)?.let { state ->
+                    val current = servers[server]
+                    if (current == null || current.lastFailure < state.lastFailure) {
+                        servers[server] = state
+                    }
+                }
+            }
+        }
+    }
+
+    private fun encode(state: State) = "${state.failures} ${state.lastFailure} ${state.retryAfterUntil} ${state.openUntil}"
+
+    private fun decode(value: String?, now: Long): State? {
+        val parts = value?.split(' ')?.map { it.toLongOrNull() } ?: return null
+        if (parts.size != 4 || parts.any { it == null }) {
+            return null
+        }
+        val state = State()
+        state.failures = parts[0]!!.toInt()
+        state.lastFailure = parts[1]!!
+        state.retryAfterUntil = parts[2]!!
+        state.openUntil = parts[3]!!
+        // The server may have been fine for a long time, e.g. if another account of it synchronized successfully
+        return if (now - state.lastFailure < MAX_RETRY_AFTER * 1000) state else null
+    }
+
+    fun dump(report: StringBuilder) {
+        synchronized(this) {
+            val now = System.currentTimeMillis()
+            for ((server, state) in servers) {
+                report.append("Backoff of ").append(server).append(": ").append(state.failures).append(" failures")
+                if (state.openUntil > now) {
+                    report.append(", suspended for ").append((state.openUntil - now) / 1000).append(" s")
+                }
+                if (state.retryAfterUntil > now) {
+                    report.append(", Retry-After ").append((state.retryAfterUntil - now) / 1000).append(" s")
+                }
+                report.append("\n")
+            }
+            for ((account, state) in accounts) {
+                report.append("Backoff of ").append(account).append(": ").append(state.failures).append(" failures\n")
+            }
+        }
+    }
+}
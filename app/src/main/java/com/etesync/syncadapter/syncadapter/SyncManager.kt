@@ -42,12 +42,17 @@ import java.io.Closeable
 import java.io.FileNotFoundException
 import java.io.IOException
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 import java.util.concurrent.locks.ReentrantLock
 import java.util.logging.Level
 import javax.net.ssl.SSLHandshakeException
 import kotlin.concurrent.withLock
 
-abstract class SyncManager<T: LocalResource<*>> @Throws(Exceptions.IntegrityException::class, Exceptions.GenericCryptoException::class)
+abstract class SyncManager<T: LocalResource<*>, D: Any> @Throws(Exceptions.IntegrityException::class, Exceptions.GenericCryptoException::class)
 constructor(protected val context: Context, protected val account: Account, protected val settings: AccountSettings, protected val extras: Bundle, protected val authority: String, protected val syncResult: SyncResult, journalUid: String, protected val serviceType: CollectionInfo.Type, accountName: String): Closeable {
     // FIXME: remove all of the lateinit once we remove legacy (and make immutable)
     // RemoteEntries and the likes are probably also just relevant for legacy
@@ -63,6 +68,8 @@ constructor(protected val context: Context, protected val account: Account, prot
     protected lateinit var etebase: com.etebase.client.Account
     protected lateinit var colMgr: CollectionManager
     protected lateinit var itemMgr: ItemManager
+    /** item manager of [networkExecutor], so it never shares one with the sync thread */
+    private lateinit var networkItemMgr: ItemManager
     protected lateinit var cachedCollection: CachedCollection
 
     // Sync counters
@@ -100,6 +107,41 @@ constructor(protected val context: Context, protected val account: Account, prot
     private var localDeleted: List<T>? = null
     protected var localDirty: List<T> = LinkedList()
 
+    /**
+     * Timings and counters of this sync, kept in [SyncStats]' history once it's done.
+     */
+    protected val syncStats = SyncStats(accountName, authority, journalUid)
+
+    /**
+     * Local resources by file name, built once per sync before applying remote items so that every item doesn't
+     * need its own provider query.
+     */
+    protected var localIndex: LocalFilenameIndex<T>? = null
+
+    /**
+     * Single background thread for network requests that overlap with local work: uploading a push chunk while
+     * the next one is serialized, and prefetching the next page of remote items while the current one is applied.
+     */
+    private val networkExecutor: ExecutorService by lazy { Executors.newSingleThreadExecutor() }
+
+    /**
+     * File names of the resources whose push chunk is being uploaded; they are still dirty locally, so they are
+     * skipped when looking for the next chunk.
+     */
+    private var pushInFlight: Set<String?> = emptySet()
+
+    /**
+     * Number of items per fetch/push request, adapted to the item sizes and round-trip times seen during this sync.
+     */
+    private val fetchChunkSize = settings.fetchChunkBounds.let { AdaptiveChunkSize(it.first, it.last, MAX_FETCH) }
+    private val pushChunkSize = settings.pushChunkBounds.let { AdaptiveChunkSize(it.first, it.last, MAX_PUSH) }
+    private val applyBatchSize = settings.applyBatchSize.let { if (it > 0) it else Int.MAX_VALUE }
+
+    /**
+     * The push limit of the current chunk.
+     */
+    private var pushLimit = MAX_PUSH
+
     protected abstract val syncErrorTitle: String
 
     protected abstract val syncSuccessfullyTitle: String
@@ -125,12 +167,11 @@ constructor(protected val context: Context, protected val account: Account, prot
             }
         } else {
             etebaseLocalCache = EtebaseLocalCache.getInstance(context, accountName)
-            etebase = EtebaseLocalCache.getEtebase(context, httpClient.okHttpClient, settings)
+            etebase = EtebaseLocalCache.getEtebase(context, settings)
             colMgr = etebase.collectionManager
-            synchronized(etebaseLocalCache) {
-                cachedCollection = etebaseLocalCache.collectionGet(colMgr, journalUid)!!
-            }
+            cachedCollection = etebaseLocalCache.collectionGet(colMgr, journalUid)!!
             itemMgr = colMgr.getItemManager(cachedCollection.col)
+            networkItemMgr = colMgr.getItemManager(cachedCollection.col)
         }
 
         // dismiss previous error notifications
@@ -141,11 +182,27 @@ constructor(protected val context: Context, protected val account: Account, prot
     protected abstract fun notificationId(): Int
 
     override fun close() {
+        networkExecutor.shutdownNow()
         httpClient.close()
     }
 
-    @TargetApi(21)
     fun performSync() {
+        // Held while syncing, so the same collection is never synchronized by two syncs at once
+        withCollectionLock(journalUid) {
+            try {
+                performSyncLocked()
+            } finally {
+                if (!isLegacy) {
+                    syncStats.chunkSizes(fetchChunkSize.current, pushChunkSize.current)
+                }
+                syncStats.finish(syncResult.hasError())
+                SyncStats.record(syncStats)
+            }
+        }
+    }
+
+    @TargetApi(21)
+    private fun performSyncLocked() {
         syncItemsTotal = 0
         syncItemsDeleted = 0
         syncItemsChanged = 0
@@ -153,6 +210,7 @@ constructor(protected val context: Context, protected val account: Account, prot
         var syncPhase = R.string.sync_phase_prepare
         try {
             Logger.log.info("Sync phase: " + context.getString(syncPhase))
+            syncStats.startPhase(syncPhase)
             if (!prepare()) {
                 Logger.log.info("No reason to synchronize, aborting")
                 return
@@ -162,6 +220,7 @@ constructor(protected val context: Context, protected val account: Account, prot
                 throw InterruptedException()
             syncPhase = R.string.sync_phase_prepare_fetch
             Logger.log.info("Sync phase: " + context.getString(syncPhase))
+            syncStats.startPhase(syncPhase)
             prepareFetch()
 
             if (isLegacy) {
@@ -170,12 +229,14 @@ constructor(protected val context: Context, protected val account: Account, prot
                         throw InterruptedException()
                     syncPhase = R.string.sync_phase_fetch_entries
                     Logger.log.info("Sync phase: " + context.getString(syncPhase))
+                    syncStats.startPhase(syncPhase)
                     fetchEntries()
 
                     if (Thread.interrupted())
                         throw InterruptedException()
                     syncPhase = R.string.sync_phase_apply_remote_entries
                     Logger.log.info("Sync phase: " + context.getString(syncPhase))
+                    syncStats.startPhase(syncPhase)
                     applyRemoteEntries()
                 } while (remoteEntries!!.size == MAX_FETCH)
 
@@ -184,6 +245,7 @@ constructor(protected val context: Context, protected val account: Account, prot
                         throw InterruptedException()
                     syncPhase = R.string.sync_phase_prepare_local
                     Logger.log.info("Sync phase: " + context.getString(syncPhase))
+                    syncStats.startPhase(syncPhase)
                     prepareLocal()
 
                     /* Create journal entries out of local changes. */
@@ -191,12 +253,14 @@ constructor(protected val context: Context, protected val account: Account, prot
                         throw InterruptedException()
                     syncPhase = R.string.sync_phase_create_local_entries
                     Logger.log.info("Sync phase: " + context.getString(syncPhase))
+                    syncStats.startPhase(syncPhase)
                     createLocalEntries()
 
                     if (Thread.interrupted())
                         throw InterruptedException()
                     syncPhase = R.string.sync_phase_apply_local_entries
                     Logger.log.info("Sync phase: " + context.getString(syncPhase))
+                    syncStats.startPhase(syncPhase)
                     /* FIXME: Skipping this now, because we already override with remote.
                     applyLocalEntries();
                     */
@@ -205,59 +269,104 @@ constructor(protected val context: Context, protected val account: Account, prot
                         throw InterruptedException()
                     syncPhase = R.string.sync_phase_push_entries
                     Logger.log.info("Sync phase: " + context.getString(syncPhase))
+                    syncStats.startPhase(syncPhase)
                     pushEntries()
                 } while (localEntries!!.size == MAX_PUSH)
             } else {
                 var itemList: ItemListResponse?
-                var stoken = synchronized(etebaseLocalCache) {
-                    etebaseLocalCache.collectionLoadStoken(cachedCollection.col.uid)
-                }
-                // Push local changes
-                var chunkPushItems: List<Item>
-                do {
-                    if (Thread.interrupted())
-                        throw InterruptedException()
-                    syncPhase = R.string.sync_phase_prepare_local
-                    Logger.log.info("Sync phase: " + context.getString(syncPhase))
-                    prepareLocal()
-
-                    /* Create push items out of local changes. */
-                    if (Thread.interrupted())
-                        throw InterruptedException()
-                    syncPhase = R.string.sync_phase_create_local_entries
-                    Logger.log.info("Sync phase: " + context.getString(syncPhase))
-                    chunkPushItems = createPushItems()
-
-                    if (Thread.interrupted())
-                        throw InterruptedException()
-                    syncPhase = R.string.sync_phase_push_entries
-                    Logger.log.info("Sync phase: " + context.getString(syncPhase))
-                    pushItems(chunkPushItems)
-                } while (chunkPushItems.size == MAX_PUSH)
+                var stoken = etebaseLocalCache.collectionLoadStoken(cachedCollection.col.uid)
+                // Push local changes. Every chunk is serialized while the previous one is being uploaded, and
+                // the local resources are only marked as clean once the server acknowledged their chunk.
+                var chunkPushItems: PushChunk
+                var uploading: PushChunk? = null
+                var upload: Future<*>? = null
+                try {
+                    do {
+                        pushLimit = pushChunkSize.current
+                        pushInFlight = uploading?.entries?.map { it.local.fileName }?.toSet() ?: emptySet()
+
+                        if (Thread.interrupted())
+                            throw InterruptedException()
+                        syncPhase = R.string.sync_phase_prepare_local
+                        Logger.log.info("Sync phase: " + context.getString(syncPhase))
+                        syncStats.startPhase(syncPhase)
+                        prepareLocal()
+
+                        /* Create push items out of local changes. */
+                        if (Thread.interrupted())
+                            throw InterruptedException()
+                        syncPhase = R.string.sync_phase_create_local_entries
+                        Logger.log.info("Sync phase: " + context.getString(syncPhase))
+                        syncStats.startPhase(syncPhase)
+                        chunkPushItems = createPushItems()
+
+                        if (upload != null) {
+                            awaitResult(upload)
+                            upload = null
+                            finishPush(uploading!!)
+                        }
 
-                do {
-                    if (Thread.interrupted())
-                        throw InterruptedException()
-                    syncPhase = R.string.sync_phase_fetch_entries
-                    Logger.log.info("Sync phase: " + context.getString(syncPhase))
-                    itemList = fetchItems(stoken)
-                    if (itemList == null) {
-                        break
+                        if (Thread.interrupted())
+                            throw InterruptedException()
+                        syncPhase = R.string.sync_phase_push_entries
+                        Logger.log.info("Sync phase: " + context.getString(syncPhase))
+                        syncStats.startPhase(syncPhase)
+                        uploading = chunkPushItems
+                        upload = uploadItems(chunkPushItems)
+                    } while (hasMorePushChunks(chunkPushItems.entries.size, pushLimit))
+
+                    if (upload != null) {
+                        awaitResult(upload)
+                        upload = null
+                        finishPush(uploading!!)
                     }
+                } finally {
+                    upload?.cancel(true)
+                    pushInFlight = emptySet()
+                }
 
-                    if (Thread.interrupted())
-                        throw InterruptedException()
-                    syncPhase = R.string.sync_phase_apply_remote_entries
-                    Logger.log.info("Sync phase: " + context.getString(syncPhase))
-                    applyRemoteItems(itemList)
+                // The next page is fetched in the background while the current one is applied, but the
+                // stoken is only saved once a page has been fully applied, so ordering is preserved.
+                var nextItemList: Future<ItemListResponse?>? = null
+                val checkpoint = etebaseLocalCache.collectionGetCheckpoint(cachedCollection.col.uid)
+                try {
+                    localIndex = null
+                    do {
+                        if (Thread.interrupted())
+                            throw InterruptedException()
+                        syncPhase = R.string.sync_phase_fetch_entries
+                        Logger.log.info("Sync phase: " + context.getString(syncPhase))
+                        syncStats.startPhase(syncPhase)
+                        itemList = if (nextItemList != null) awaitResult(nextItemList) else fetchItems(stoken)
+                        nextItemList = null
+                        if (itemList == null) {
+                            break
+                        }
 
-                    stoken = itemList.stoken
-                    if (stoken != null) {
-                        synchronized(etebaseLocalCache) {
-                            etebaseLocalCache.collectionSaveStoken(cachedCollection.col.uid, stoken)
+                        if (!itemList.isDone) {
+                            nextItemList = prefetchItems(itemList.stoken)
                         }
-                    }
-                } while (!itemList!!.isDone)
+
+                        if (Thread.interrupted())
+                            throw InterruptedException()
+                        syncPhase = R.string.sync_phase_apply_remote_entries
+                        Logger.log.info("Sync phase: " + context.getString(syncPhase))
+                        syncStats.startPhase(syncPhase)
+                        if (localIndex == null) {
+                            localIndex = localCollection!!.buildFilenameIndex()
+                            Logger.log.info("Indexed ${localIndex!!.size} local resources")
+                        }
+                        checkpoint.begin(stoken)
+                        // Saves the page's stoken together with its items
+                        applyRemoteItems(itemList, checkpoint)
+
+                        stoken = itemList.stoken
+                        checkpoint.complete()
+                    } while (!itemList!!.isDone)
+                } finally {
+                    nextItemList?.cancel(true)
+                    localIndex = null
+                }
             }
 
             /* Cleanup and finalize changes */
@@ -265,6 +374,7 @@ constructor(protected val context: Context, protected val account: Account, prot
                 throw InterruptedException()
             syncPhase = R.string.sync_phase_post_processing
             Logger.log.info("Sync phase: " + context.getString(syncPhase))
+            syncStats.startPhase(syncPhase)
             postProcess()
 
             if (numDiscarded > 0) {
@@ -272,7 +382,11 @@ constructor(protected val context: Context, protected val account: Account, prot
             }
             notifyUserOnSync()
 
-            Logger.log.info("Finished sync with CTag=$remoteCTag")
+            if (isLegacy) {
+                Logger.log.info("Finished sync with CTag=$remoteCTag")
+            } else {
+                Logger.log.info("Finished sync with CTag=$remoteCTag (fetch chunk: $fetchChunkSize, push chunk: $pushChunkSize)")
+            }
         } catch (e: SSLHandshakeException) {
             syncResult.stats.numIoExceptions++
 
@@ -289,14 +403,11 @@ constructor(protected val context: Context, protected val account: Account, prot
             Logger.log.log(Level.WARNING, "I/O exception during sync, trying again later", e)
             syncResult.stats.numIoExceptions++
         } catch (e: Exceptions.ServiceUnavailableException) {
-            syncResult.stats.numIoExceptions++
-            syncResult.delayUntil = if (e.retryAfter > 0) e.retryAfter else Constants.DEFAULT_RETRY_DELAY
+            SyncBackoff.markFailure(syncResult, e.retryAfter)
         } catch (e: TemporaryServerErrorException) {
-            syncResult.stats.numIoExceptions++
-            syncResult.delayUntil = Constants.DEFAULT_RETRY_DELAY
+            SyncBackoff.markFailure(syncResult)
         } catch (e: ConnectionException) {
-            syncResult.stats.numIoExceptions++
-            syncResult.delayUntil = Constants.DEFAULT_RETRY_DELAY
+            SyncBackoff.markFailure(syncResult)
         } catch (e: InterruptedException) {
             // Restart sync if interrupted
             syncResult.fullSyncRequested = true
@@ -377,23 +488,54 @@ constructor(protected val context: Context, protected val account: Account, prot
         return true
     }
 
-    protected abstract fun processItem(item: Item)
+    /**
+     * Parses the decrypted content of the remote (non-deleted) item [itemUid]. This is called concurrently from the
+     * decode pool, so it must neither access the local collection nor the etebase objects.
+     *
+     * @return the parsed resource, or null if the item should be ignored
+     */
+    protected abstract fun decodeItem(itemUid: String, content: ByteArray): D?
 
-    private fun persistItem(item: Item) {
-        synchronized(etebaseLocalCache) {
-            // FIXME: it's terrible that we are fetching and decrypting the item here - we really don't have to
-            val cached = etebaseLocalCache.itemGet(itemMgr, cachedCollection.col.uid, item.uid)
-            if (cached?.item?.etag != item.etag) {
-                syncItemsTotal++
+    /**
+     * Applies a remote item to the local collection. Called in the original item order.
+     *
+     * @param decoded the result of [decodeItem], always null for deleted items
+     */
+    protected abstract fun processItem(item: Item, decoded: D?)
 
-                if (item.isDeleted) {
-                    syncItemsDeleted++
-                } else {
-                    syncItemsChanged++
-                }
-                etebaseLocalCache.itemSet(itemMgr, cachedCollection.col.uid, item)
+    /**
+     * Called before the items of a page are processed, so the provider operations of the whole page
+     * can be collected into a single batch.
+     */
+    protected open fun beginPageBatch() {
+    }
+
+    /**
+     * Commits the provider operations collected since [beginPageBatch].
+     */
+    @Throws(ContactsStorageException::class, CalendarStorageException::class)
+    protected open fun commitPageBatch(): Int {
+        return 0
+    }
+
+    /**
+     * Stores the changed [items] in the local cache, followed by [stoken] (if not null).
+     */
+    private fun persistItems(items: List<Item>, stoken: String?) {
+        val colUid = cachedCollection.col.uid
+        val changed = items.filter { item ->
+            etebaseLocalCache.itemInfo(itemMgr, colUid, item.uid)?.etag != item.etag
+        }
+        for (item in changed) {
+            syncItemsTotal++
+
+            if (item.isDeleted) {
+                syncItemsDeleted++
+            } else {
+                syncItemsChanged++
             }
         }
+        etebaseLocalCache.itemSetAll(itemMgr, colUid, changed, stoken)
     }
 
     @Throws(IOException::class, ContactsStorageException::class, CalendarStorageException::class, InvalidCalendarException::class)
@@ -443,9 +585,12 @@ constructor(protected val context: Context, protected val account: Account, prot
         }
     }
 
-    private fun fetchItems(stoken: String?): ItemListResponse? {
+    private fun fetchItems(stoken: String?, mgr: ItemManager = itemMgr): ItemListResponse? {
         if (remoteCTag != stoken) {
-            val ret = itemMgr.list(FetchOptions().stoken(stoken))
+            val start = System.currentTimeMillis()
+            val ret = mgr.list(FetchOptions().stoken(stoken).limit(fetchChunkSize.current.toLong()))
+            fetchChunkSize.onRoundTrip(ret.data.size, System.currentTimeMillis() - start)
+            syncStats.count(R.string.sync_phase_fetch_entries, items = ret.data.size)
             Logger.log.info("Fetched items. Done=${ret.isDone}")
             return ret
         } else {
@@ -454,22 +599,109 @@ constructor(protected val context: Context, protected val account: Account, prot
         }
     }
 
-    private fun applyRemoteItems(itemList: ItemListResponse) {
-        val items = itemList.data
+    private fun prefetchItems(stoken: String?): Future<ItemListResponse?> {
+        return networkExecutor.submit(Callable {
+            fetchItems(stoken, networkItemMgr)
+        })
+    }
+
+    /**
+     * Waits for a background task, rethrowing whatever it threw so it's handled as if it ran on the sync thread.
+     */
+    private fun <R> awaitResult(future: Future<R>): R {
+        try {
+            return future.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        }
+    }
+
+    /**
+     * Decodes all of the items of a page. The results are in the same order as the items.
+     *
+     * The items are decrypted on the sync thread, as the etebase objects aren't known to be safe to use from several
+     * threads at once, and only the parsing of their content runs on the decode pool.
+     */
+    private fun decodeItems(items: Array<Item>): List<D?> {
+        var pageBytes = 0L
+        val futures = items.map { item ->
+            if (item.isDeleted) {
+                null
+            } else {
+                val itemUid = item.uid
+                val content = item.content
+                pageBytes += content.size
+                codecExecutor.submit(Callable<D?> { decodeItem(itemUid, content) })
+            }
+        }
+
+        try {
+            val ret = futures.map { if (it != null) awaitResult(it) else null }
+            fetchChunkSize.onPayload(items.size, pageBytes)
+            syncStats.count(R.string.sync_phase_fetch_entries, bytes = pageBytes)
+            return ret
+        } finally {
+            for (future in futures) {
+                future?.cancel(true)
+            }
+        }
+    }
+
+    /**
+     * Finds the local resource of a remote item, using [localIndex] when it's available.
+     */
+    protected fun findLocalByFilename(fileName: String): T? {
+        val index = localIndex
+        return if (index != null) index.find(fileName) else localCollection!!.findByFilename(fileName)
+    }
+
+    /**
+     * Applies a page of remote items, skipping the ones [checkpoint] says were already applied by an earlier,
+     * interrupted sync. The items are committed in batches of [AccountSettings.applyBatchSize], and every committed
+     * batch is recorded in [checkpoint], so a sync that is killed or fails mid-page only has to apply the last batch
+     * again.
+     */
+    private fun applyRemoteItems(itemList: ItemListResponse, checkpoint: EtebaseSyncCheckpoint) {
+        val items = itemList.data.filter { !checkpoint.isApplied(it) }
+        if (items.size < itemList.data.size) {
+            Logger.log.info("Skipping ${itemList.data.size - items.size} items applied by an interrupted sync")
+        }
         // Process new vcards from server
         val size = items.size
-        var i = 0
+        var batchStart = 0
+
+        val decodedItems = decodeItems(items.toTypedArray())
 
-        for (item in items) {
+        beginPageBatch()
+        for ((i, item) in items.withIndex()) {
             if (Thread.interrupted()) {
+                commitAppliedItems(items.subList(batchStart, i), checkpoint, null)
                 throw InterruptedException()
             }
-            i++
-            Logger.log.info("Processing (${i}/${size}) UID=${item.uid} Etag=${item.etag}")
+            Logger.log.info("Processing (${i + 1}/${size}) UID=${item.uid} Etag=${item.etag}")
+
+            processItem(item, decodedItems[i])
 
-            processItem(item)
-            persistItem(item)
+            if (i + 1 - batchStart >= applyBatchSize && i + 1 < size) {
+                commitAppliedItems(items.subList(batchStart, i + 1), checkpoint, null)
+                batchStart = i + 1
+                beginPageBatch()
+            }
         }
+        commitAppliedItems(items.subList(batchStart, size), checkpoint, itemList.stoken)
+    }
+
+    /**
+     * Commits the provider operations of the applied [items] and records them in the local cache and in
+     * [checkpoint]. [stoken] is only passed once the whole page was applied.
+     */
+    private fun commitAppliedItems(items: List<Item>, checkpoint: EtebaseSyncCheckpoint, stoken: String?) {
+        val ops = commitPageBatch()
+        syncStats.count(R.string.sync_phase_apply_remote_entries, items = items.size, providerOps = ops)
+
+        // Only record the items as synced once the provider has committed them
+        persistItems(items, stoken)
+        checkpoint.markApplied(items)
     }
 
     @Throws(Exceptions.HttpException::class, ContactsStorageException::class, CalendarStorageException::class, Exceptions.IntegrityException::class)
@@ -583,57 +815,39 @@ constructor(protected val context: Context, protected val account: Account, prot
         }
     }
 
-    private fun pushItems(chunkPushItems_: List<Item>) {
-        var chunkPushItems = chunkPushItems_
-        // upload dirty contacts
-        var pushed = 0
-        try {
-            if (!chunkPushItems.isEmpty()) {
-                val items = chunkPushItems
-                itemMgr.batch(items.toTypedArray())
+    /**
+     * Starts uploading a chunk in the background, or returns null if there's nothing to upload.
+     */
+    private fun uploadItems(chunk: PushChunk): Future<*>? {
+        if (chunk.entries.isEmpty()) {
+            return null
+        }
 
-                // Persist the items
-                synchronized(etebaseLocalCache) {
-                    val colUid = cachedCollection.col.uid
+        return networkExecutor.submit(Runnable {
+            val items = chunk.entries.map { it.item }
+            val start = System.currentTimeMillis()
+            networkItemMgr.batch(items.toTypedArray())
+            pushChunkSize.onRoundTrip(items.size, System.currentTimeMillis() - start)
+            pushChunkSize.onPayload(items.size, chunk.bytes)
+            syncStats.count(R.string.sync_phase_push_entries, items = items.size, bytes = chunk.bytes)
+        })
+    }
 
-                    for (item in items) {
-                        etebaseLocalCache.itemSet(itemMgr, colUid, item)
-                    }
-                }
+    /**
+     * Persists an uploaded chunk and marks its local resources as clean (or removes the deleted ones).
+     */
+    private fun finishPush(chunk: PushChunk) {
+        val colUid = cachedCollection.col.uid
 
-                pushed += items.size
-            }
-        } finally {
-            // FIXME: A bit fragile, we assume the order in createPushItems
-            var left = pushed
-            for (local in localDeleted!!) {
-                if (pushed-- <= 0) {
-                    break
-                }
-                local.delete()
-            }
-            if (left > 0) {
-                localDeleted = localDeleted?.drop(left)
-                chunkPushItems = chunkPushItems.drop(left - pushed)
-            }
+        etebaseLocalCache.itemSetAll(itemMgr, colUid, chunk.entries.map { it.item })
 
-            left = pushed
-            var i = 0
-            for (local in localDirty) {
-                if (pushed-- <= 0) {
-                    break
-                }
-                Logger.log.info("Added/changed resource with filename: " + local.fileName)
-                local.clearDirty(chunkPushItems[i].etag)
-                i++
-            }
-            if (left > 0) {
-                localDirty = localDirty.drop(left)
-                chunkPushItems.drop(left)
-            }
-
-            if (pushed > 0) {
-                Logger.log.severe("Unprocessed localentries left, this should never happen!")
+        syncStats.count(R.string.sync_phase_push_entries, providerOps = chunk.entries.size)
+        for (entry in chunk.entries) {
+            if (entry.isDeletion) {
+                entry.local.delete()
+            } else {
+                Logger.log.info("Added/changed resource with filename: " + entry.local.fileName)
+                entry.local.clearDirty(entry.item.etag)
             }
         }
     }
@@ -645,10 +859,10 @@ constructor(protected val context: Context, protected val account: Account, prot
     }
 
     private fun prepareLocalItemForUpload(colUid: String, local: T): Item {
-        val cacheItem = if (local.fileName != null) etebaseLocalCache.itemGet(itemMgr, colUid, local.fileName!!) else null
+        val cacheItem = if (local.fileName != null) etebaseLocalCache.itemGetRaw(itemMgr, colUid, local.fileName!!) else null
         val item: Item
         if (cacheItem != null) {
-            item = cacheItem.item
+            item = cacheItem
             itemUpdateMtime(item)
         } else {
             val uid = UUID.randomUUID().toString()
@@ -660,53 +874,60 @@ constructor(protected val context: Context, protected val account: Account, prot
             local.prepareForUpload(item.uid, uid)
         }
 
-        try {
-            item.setContent(local.content)
-        } catch (e: Exception) {
-            Logger.log.warning("Failed creating local entry ${local.uuid}")
-            if (local is LocalContact) {
-                Logger.log.warning("Contact with title ${local.contact?.displayName}")
-            } else if (local is LocalEvent) {
-                Logger.log.warning("Event with title ${local.event?.summary}")
-            } else if (local is LocalTask) {
-                Logger.log.warning("Task with title ${local.task?.summary}")
-            }
-            throw e
-        }
-
         return item
     }
 
-    private fun createPushItems(): List<Item> {
-        val ret = LinkedList<Item>()
+    private fun createPushItems(): PushChunk {
+        val entries = ArrayList<PushEntry>()
         val colUid = cachedCollection.col.uid
 
-        synchronized(etebaseLocalCache) {
-            for (local in localDeleted!!) {
-                val item = prepareLocalItemForUpload(colUid, local)
-                item.delete()
-
-                ret.add(item)
-
-                if (ret.size == MAX_PUSH) {
-                    return ret
-                }
+        for (local in localDeleted!!) {
+            if (entries.size == pushLimit) {
+                break
             }
+            entries.add(PushEntry(local, prepareLocalItemForUpload(colUid, local), true))
         }
 
-        synchronized(etebaseLocalCache) {
-            for (local in localDirty) {
-                val item = prepareLocalItemForUpload(colUid, local)
+        for (local in localDirty) {
+            if (entries.size == pushLimit) {
+                break
+            }
+            entries.add(PushEntry(local, prepareLocalItemForUpload(colUid, local), false))
+        }
 
-                ret.add(item)
+        return PushChunk(entries, encodePushItems(entries))
+    }
 
-                if (ret.size == MAX_PUSH) {
-                    return ret
+    /**
+     * Serializes and encrypts the push items, returning the payload size. This runs on the sync thread (which is the
+     * only one using the content provider) while the previous chunk is being uploaded. The items are handed over to
+     * the upload once they're done, so no etebase object is ever used by two threads at once.
+     */
+    private fun encodePushItems(entries: List<PushEntry>): Long {
+        var bytes = 0L
+        for (entry in entries) {
+            val local = entry.local
+            val content = try {
+                local.content
+            } catch (e: Exception) {
+                Logger.log.warning("Failed creating local entry ${local.uuid}")
+                if (local is LocalContact) {
+                    Logger.log.warning("Contact with title ${local.contact?.displayName}")
+                } else if (local is LocalEvent) {
+                    Logger.log.warning("Event with title ${local.event?.summary}")
+                } else if (local is LocalTask) {
+                    Logger.log.warning("Task with title ${local.task?.summary}")
                 }
+                throw e
             }
-        }
 
-        return ret
+            entry.item.setContent(content)
+            if (entry.isDeletion) {
+                entry.item.delete()
+            }
+            bytes += content.length
+        }
+        return bytes
     }
 
     @Throws(CalendarStorageException::class, ContactsStorageException::class, IOException::class)
@@ -765,7 +986,11 @@ constructor(protected val context: Context, protected val account: Account, prot
     @Throws(CalendarStorageException::class, ContactsStorageException::class, FileNotFoundException::class)
     protected open fun prepareLocal() {
         localDeleted = processLocallyDeleted()
-        localDirty = localCollection!!.findDirty(MAX_PUSH)
+        localDirty = if (pushInFlight.isEmpty()) {
+            localCollection!!.findDirty(pushLimit)
+        } else {
+            localCollection!!.findDirty(pushLimit + pushInFlight.size).filter { !pushInFlight.contains(it.fileName) }.take(pushLimit)
+        }
         // This is done after fetching the local dirty so all the ones we are using will be prepared
         prepareDirty()
     }
@@ -777,7 +1002,7 @@ constructor(protected val context: Context, protected val account: Account, prot
      */
     @Throws(CalendarStorageException::class, ContactsStorageException::class)
     private fun processLocallyDeleted(): List<T> {
-        val localList = localCollection!!.findDeleted()
+        val localList = localCollection!!.findDeleted().filter { !pushInFlight.contains(it.fileName) }
         val ret = ArrayList<T>(localList.size)
 
         val readOnly = (isLegacy && journalEntity.isReadOnly) || (!isLegacy && (cachedCollection.col.accessLevel == CollectionAccessLevel.ReadOnly))
@@ -855,10 +1080,54 @@ constructor(protected val context: Context, protected val account: Account, prot
         notification.notify(context.getString(R.string.sync_journal_readonly, info.displayName), context.getString(R.string.sync_journal_readonly_message, numDiscarded), null, intent, R.drawable.ic_error_light)
     }
 
+    private inner class PushEntry(val local: T, val item: Item, val isDeletion: Boolean)
+
+    private inner class PushChunk(val entries: List<PushEntry>, val bytes: Long)
+
     companion object {
         private val MAX_FETCH = 50
         private val MAX_PUSH = 30
 
+        /**
+         * Worker pool for parsing remote vCards/iCalendars, shared between all of the running syncs.
+         */
+        private val codecExecutor: ExecutorService by lazy {
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors().coerceIn(1, 4))
+        }
+
         private val pushLock = ReentrantLock()
+
+        /**
+         * Whether the push loop has to look for more local changes after a chunk of [chunkSize] entries that was
+         * created with a limit of [limit]. Only a full chunk means that there may be more of them.
+         */
+        internal fun hasMorePushChunks(chunkSize: Int, limit: Int) = chunkSize >= limit
+
+        private class CollectionLock {
+            val lock = ReentrantLock()
+            /** syncs holding or waiting for [lock], guarded by [collectionLocks] */
+            var users = 0
+        }
+
+        private val collectionLocks = HashMap<String, CollectionLock>()
+
+        /**
+         * Runs [block] while holding the lock of collection [uid]. A lock is only kept while a sync holds or waits
+         * for it, so there's no lock left behind for every collection that was ever synchronized.
+         */
+        private fun <R> withCollectionLock(uid: String, block: () -> R): R {
+            val collectionLock = synchronized(collectionLocks) {
+                collectionLocks.getOrPut(uid) { CollectionLock() }.also { it.users++ }
+            }
+            try {
+                return collectionLock.lock.withLock(block)
+            } finally {
+                synchronized(collectionLocks) {
+                    if (--collectionLock.users == 0) {
+                        collectionLocks.remove(uid)
+                    }
+                }
+            }
+        }
     }
 }
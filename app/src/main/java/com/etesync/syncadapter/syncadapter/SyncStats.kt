@@ -0,0 +1,130 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter.syncadapter
+
+import android.content.Context
+import java.text.DateFormat
+import java.util.*
+
+/**
+ * Timings and counters of a single collection sync, broken down by sync phase.
+ *
+ * Phases are identified by their string resource (R.string.sync_phase_*). Wall time is measured between
+ * [startPhase] calls on the sync thread, while the counters may be updated from any thread.
+ */
+class SyncStats(val accountName: String, val authority: String, val collectionUid: String) {
+    class Phase {
+        var millis: Long = 0
+        var items: Int = 0
+        var bytes: Long = 0
+        var providerOps: Int = 0
+    }
+
+    val started = System.currentTimeMillis()
+    var finished: Long = 0
+        private set
+    var hasErrors = false
+        private set
+
+    /** chunk sizes (items per request) the sync ended up with, or 0 if they weren't adapted */
+    var fetchChunkSize = 0
+        private set
+    var pushChunkSize = 0
+        private set
+
+    private val phases = LinkedHashMap<Int, Phase>()
+    private var currentPhase: Int? = null
+    private var currentPhaseStart: Long = 0
+
+    @Synchronized
+    fun startPhase(phase: Int) {
+        endPhase()
+        currentPhase = phase
+        currentPhaseStart = System.currentTimeMillis()
+    }
+
+    @Synchronized
+    fun count(phase: Int, items: Int = 0, bytes: Long = 0, providerOps: Int = 0) {
+        val stats = phase(phase)
+        stats.items += items
+        stats.bytes += bytes
+        stats.providerOps += providerOps
+    }
+
+    @Synchronized
+    fun chunkSizes(fetch: Int, push: Int) {
+        fetchChunkSize = fetch
+        pushChunkSize = push
+    }
+
+    @Synchronized
+    fun finish(hasErrors: Boolean) {
+        endPhase()
+        finished = System.currentTimeMillis()
+        this.hasErrors = hasErrors
+    }
+
+    private fun endPhase() {
+        val phase = currentPhase ?: return
+        phase(phase).millis += System.currentTimeMillis() - currentPhaseStart
+        currentPhase = null
+    }
+
+    private fun phase(phase: Int): Phase = phases.getOrPut(phase) { Phase() }
+
+    @Synchronized
+    fun dump(context: Context, report: StringBuilder) {
+        val date = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.MEDIUM).format(Date(started))
+        report.append(date).append(" ").append(authority).append(" ").append(accountName)
+                .append(" [").append(collectionUid).append("]: ")
+                .append(finished - started).append(" ms")
+                .append(if (hasErrors) " (with errors)" else "").append("\n")
+        if (fetchChunkSize > 0 || pushChunkSize > 0) {
+            report.append("\tChunk sizes: fetch ").append(fetchChunkSize).append(", push ").append(pushChunkSize).append("\n")
+        }
+        for ((phase, stats) in phases) {
+            report.append("\t").append(context.getString(phase)).append(": ").append(stats.millis).append(" ms")
+            if (stats.items > 0)
+                report.append(", ").append(stats.items).append(" items")
+            if (stats.bytes > 0)
+                report.append(", ").append(stats.bytes).append(" bytes")
+            if (stats.providerOps > 0)
+                report.append(", ").append(stats.providerOps).append(" provider ops")
+            report.append("\n")
+        }
+    }
+
+    companion object {
+        private const val MAX_HISTORY = 30
+
+        private val history = LinkedList<SyncStats>()
+
+        fun record(stats: SyncStats) {
+            synchronized(history) {
+                history.addFirst(stats)
+                while (history.size > MAX_HISTORY) {
+                    history.removeLast()
+                }
+            }
+        }
+
+        /**
+         * Appends the most recent syncs (newest first) to [report].
+         */
+        fun dumpHistory(context: Context, report: StringBuilder) {
+            val recent = synchronized(history) { ArrayList(history) }
+            if (recent.isEmpty()) {
+                report.append("No synchronization since the app was started\n")
+            }
+            for (stats in recent) {
+                stats.dump(context, report)
+            }
+        }
+    }
+}
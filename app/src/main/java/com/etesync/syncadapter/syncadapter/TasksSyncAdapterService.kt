@@ -64,10 +64,14 @@ class TasksSyncAdapterService: SyncAdapterService() {
             }
             val principal = accountSettings.uri?.toHttpUrlOrNull()!!
 
-            for (taskList in AndroidTaskList.find(account, taskProvider, LocalTaskList.Factory, "${TaskContract.TaskLists.SYNC_ENABLED}!=0", null)) {
-                Logger.log.info("Synchronizing task list #${taskList.id} [${taskList.syncId}]")
-                TasksSyncManager(context, account, accountSettings, extras, authority, syncResult, taskList, principal).use {
-                    it.performSync()
+            val taskLists = AndroidTaskList.find(account, taskProvider, LocalTaskList.Factory, "${TaskContract.TaskLists.SYNC_ENABLED}!=0", null)
+            CollectionSyncExecutor(accountSettings.syncConcurrency).syncAll(taskLists, syncResult) { found, taskListSyncResult ->
+                withProviderClient(authority) { client ->
+                    val taskList = AndroidTaskList.findByID(account, TaskProvider.fromProviderClient(context, name, client), LocalTaskList.Factory, found.id!!)
+                    Logger.log.info("Synchronizing task list #${taskList.id} [${taskList.syncId}]")
+                    TasksSyncManager(context, account, accountSettings, extras, authority, taskListSyncResult, taskList, principal).use {
+                        it.performSync()
+                    }
                 }
             }
 
@@ -78,13 +82,10 @@ class TasksSyncAdapterService: SyncAdapterService() {
             val remote = HashMap<String, CachedCollection>()
             val etebaseLocalCache = EtebaseLocalCache.getInstance(context, account.name)
             val collections: List<CachedCollection>
-            synchronized(etebaseLocalCache) {
-                val httpClient = HttpClient.Builder(context, settings).setForeground(false).build()
-                val etebase = EtebaseLocalCache.getEtebase(context, httpClient.okHttpClient, settings)
-                val colMgr = etebase.collectionManager
+            val etebase = EtebaseLocalCache.getEtebase(context, settings)
+            val colMgr = etebase.collectionManager
 
-                collections = etebaseLocalCache.collectionList(colMgr).filter { it.collectionType == Constants.ETEBASE_TYPE_TASKS }
-            }
+            collections = etebaseLocalCache.collectionList(colMgr).filter { it.collectionType == Constants.ETEBASE_TYPE_TASKS }
 
             for (collection in collections) {
                 remote[collection.col.uid] = collection
@@ -12,6 +12,7 @@ import android.accounts.Account
 import android.content.Context
 import android.content.SyncResult
 import android.os.Bundle
+import at.bitfire.ical4android.BatchOperation
 import at.bitfire.ical4android.Task
 import com.etebase.client.Item
 import com.etesync.syncadapter.AccountSettings
@@ -21,6 +22,7 @@ import com.etesync.journalmanager.JournalEntryManager
 import com.etesync.syncadapter.log.Logger
 import com.etesync.syncadapter.model.CollectionInfo
 import com.etesync.journalmanager.model.SyncEntry
+import com.etesync.syncadapter.resource.LocalFilenameIndex
 import com.etesync.syncadapter.resource.LocalTask
 import com.etesync.syncadapter.resource.LocalTaskList
 import okhttp3.HttpUrl
@@ -38,7 +40,7 @@ class TasksSyncManager(
         syncResult: SyncResult,
         taskList: LocalTaskList,
         private val remote: HttpUrl
-): SyncManager<LocalTask>(context, account, accountSettings, extras, authority, syncResult, taskList.url!!, CollectionInfo.Type.TASKS, account.name) {
+): SyncManager<LocalTask, Task>(context, account, accountSettings, extras, authority, syncResult, taskList.url!!, CollectionInfo.Type.TASKS, account.name) {
 
     override val syncErrorTitle: String
         get() = context.getString(R.string.sync_error_tasks, account.name)
@@ -47,6 +49,8 @@ class TasksSyncManager(
         get() = context.getString(R.string.sync_successfully_tasks, localTaskList().name!!,
                 account.name)
 
+    private var pageBatch: BatchOperation? = null
+
     init {
         localCollection = taskList
     }
@@ -65,32 +69,49 @@ class TasksSyncManager(
         return true
     }
 
+    override fun beginPageBatch() {
+        pageBatch = BatchOperation(localTaskList().provider.client)
+    }
+
+    override fun commitPageBatch(): Int {
+        val ops = pageBatch?.commit() ?: 0
+        pageBatch = null
+        return ops
+    }
+
     // helpers
 
     private fun localTaskList(): LocalTaskList {
         return localCollection as LocalTaskList
     }
 
-    override fun processItem(item: Item) {
-        val local = localCollection!!.findByFilename(item.uid)
+    override fun decodeItem(itemUid: String, content: ByteArray): Task? {
+        val inputReader = StringReader(String(content))
+
+        val tasks = Task.tasksFromReader(inputReader)
+        if (tasks.size == 0) {
+            Logger.log.warning("Received VCard without data, ignoring")
+            return null
+        } else if (tasks.size > 1) {
+            Logger.log.warning("Received multiple VCALs, using first one")
+        }
+
+        return tasks[0]
+    }
+
+    override fun processItem(item: Item, decoded: Task?) {
+        val batch = checkNotNull(pageBatch) { "Items are only processed within a page batch" }
+        val local = findLocalByFilename(item.uid)
 
         if (!item.isDeleted) {
-            val inputReader = StringReader(String(item.content))
-
-            val tasks = Task.tasksFromReader(inputReader)
-            if (tasks.size == 0) {
-                Logger.log.warning("Received VCard without data, ignoring")
-                return
-            } else if (tasks.size > 1) {
-                Logger.log.warning("Received multiple VCALs, using first one")
+            if (decoded != null) {
+                processTask(item, decoded, local)
             }
-
-            val task = tasks[0]
-            processTask(item, task, local)
         } else {
             if (local != null) {
                 Logger.log.info("Removing local record #" + local.id + " which has been deleted on the server")
-                local.delete()
+                local.enqueueDelete(batch)
+                localIndex?.remove(item.uid)
             } else {
                 Logger.log.warning("Tried deleting a non-existent record: " + item.uid)
             }
@@ -129,12 +150,16 @@ class TasksSyncManager(
         if (localTask != null) {
             Logger.log.info("Updating " + item.uid + " in local calendar")
             localTask.eTag = item.etag
+            // the ical4android task properties can't share a batch with other tasks, so the task is updated by a
+            // batch of its own
             localTask.update(newData)
+            localIndex?.put(item.uid, LocalFilenameIndex.Entry(localTask.id!!, item.etag))
             syncResult.stats.numUpdates++
         } else {
             Logger.log.info("Adding " + item.uid + " to local calendar")
             localTask = LocalTask(localTaskList(), newData, item.uid, item.etag)
             localTask.add()
+            localIndex?.put(item.uid, LocalFilenameIndex.Entry(localTask.id!!, item.etag))
             syncResult.stats.numInserts++
         }
 
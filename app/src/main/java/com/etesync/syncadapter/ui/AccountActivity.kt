@@ -95,7 +95,7 @@ class AccountActivity : BaseActivity(), Toolbar.OnMenuItemClickListener, PopupMe
                     val settings = AccountSettings(this, account)
                     return Crypto.AsymmetricCryptoManager.getPrettyKeyFingerprint(settings.keyPair!!.publicKey)
                 } else {
-                    val etebase = EtebaseLocalCache.getEtebase(this, HttpClient.sharedClient, settings)
+                    val etebase = EtebaseLocalCache.getEtebase(this, settings)
                     val invitationManager = etebase.invitationManager
                     return Utils.prettyFingerprint(invitationManager.pubkey)
                 }
@@ -419,25 +419,23 @@ class AccountActivity : BaseActivity(), Toolbar.OnMenuItemClickListener, PopupMe
                 CollectionInfo.Type.TASKS -> ETEBASE_TYPE_TASKS
             }
 
-            synchronized(etebaseLocalCache) {
-                return etebaseLocalCache.collectionList(colMgr).map {
-                    val meta = it.meta
-                    val collectionType = it.collectionType
+            return etebaseLocalCache.collectionList(colMgr).map {
+                val meta = it.meta
+                val collectionType = it.collectionType
 
-                    if (strType != collectionType) {
-                        return@map null
-                    }
+                if (strType != collectionType) {
+                    return@map null
+                }
 
-                    val accessLevel = it.col.accessLevel
-                    val isReadOnly = accessLevel == CollectionAccessLevel.ReadOnly
-                    val isAdmin = accessLevel == CollectionAccessLevel.Admin
+                val accessLevel = it.col.accessLevel
+                val isReadOnly = accessLevel == CollectionAccessLevel.ReadOnly
+                val isAdmin = accessLevel == CollectionAccessLevel.Admin
 
-                    val metaColor = meta.color
-                    val color = if (!metaColor.isNullOrBlank()) LocalCalendar.parseColor(metaColor) else null
-                    CollectionListItemInfo(it.col.uid, type, meta.name!!, meta.description
-                            ?: "", color, isReadOnly, isAdmin, null)
-                }.filterNotNull()
-            }
+                val metaColor = meta.color
+                val color = if (!metaColor.isNullOrBlank()) LocalCalendar.parseColor(metaColor) else null
+                CollectionListItemInfo(it.col.uid, type, meta.name!!, meta.description
+                        ?: "", color, isReadOnly, isAdmin, null)
+            }.filterNotNull()
         }
 
         private fun doLoad(): AccountActivity.AccountInfo {
@@ -489,8 +487,7 @@ class AccountActivity : BaseActivity(), Toolbar.OnMenuItemClickListener, PopupMe
             }
 
             val etebaseLocalCache = EtebaseLocalCache.getInstance(context, account.name)
-            val httpClient = HttpClient.Builder(context).build().okHttpClient
-            val etebase = EtebaseLocalCache.getEtebase(context, httpClient, settings)
+            val etebase = EtebaseLocalCache.getEtebase(context, settings, foreground = true)
             val colMgr = etebase.collectionManager
 
             info.carddav = AccountInfo.ServiceInfo()
@@ -594,12 +591,13 @@ class AccountActivity : BaseActivity(), Toolbar.OnMenuItemClickListener, PopupMe
                 EtebaseLocalCache.clearUserCache(this@AccountActivity, account.name)
 
                 try {
-                    val httpClient = HttpClient.Builder(this@AccountActivity).build()
-                    val etebase = EtebaseLocalCache.getEtebase(this@AccountActivity, httpClient.okHttpClient, settings)
+                    val etebase = EtebaseLocalCache.getEtebase(this@AccountActivity, settings, foreground = true)
                     etebase.logout()
                 } catch(e: EtebaseException) {
                     // Ignore failures for now
                     Logger.log.warning(e.toString())
+                } finally {
+                    EtebaseSessionPool.invalidate(account.name)
                 }
             }
         }
@@ -31,6 +31,7 @@ import com.etesync.syncadapter.*
 import com.etesync.syncadapter.Constants.KEY_ACCOUNT
 import com.etesync.syncadapter.R
 import com.etesync.syncadapter.log.Logger
+import com.etesync.syncadapter.syncadapter.requestSync
 import com.etesync.syncadapter.ui.setup.LoginCredentials
 import com.etesync.syncadapter.ui.setup.LoginCredentialsChangeFragment
 import org.jetbrains.anko.doAsync
@@ -99,8 +100,7 @@ class AccountSettingsFragment() : PreferenceFragmentCompat(), LoaderManager.Load
             doAsync {
                 try {
 
-                    val httpClient = HttpClient.Builder(requireContext()).build()
-                    val etebase = EtebaseLocalCache.getEtebase(requireContext(), httpClient.okHttpClient, settings)
+                    val etebase = EtebaseLocalCache.getEtebase(requireContext(), settings, foreground = true)
                     val url = etebase.fetchDashboardUrl()
                     uiThread {
                         WebViewActivity.openUrl(requireActivity(), url.toUri())
@@ -173,6 +173,18 @@ class AccountSettingsFragment() : PreferenceFragmentCompat(), LoaderManager.Load
             loaderManager.restartLoader(0, arguments, this@AccountSettingsFragment)
             false
         }
+
+        // Category: local cache
+        val prefCacheItemStore = findPreference("cache_item_store") as ListPreference
+        prefCacheItemStore.value = settings.cacheItemStore
+        prefCacheItemStore.summary = getString(R.string.settings_cache_item_store_summary, prefCacheItemStore.entry)
+        prefCacheItemStore.onPreferenceChangeListener = Preference.OnPreferenceChangeListener { _, newValue ->
+            settings.cacheItemStore = newValue as String
+            // The cached items are migrated when the collections are refreshed
+            requestSync(requireContext(), account)
+            loaderManager.restartLoader(0, arguments, this@AccountSettingsFragment)
+            false
+        }
     }
 
     override fun onLoaderReset(loader: Loader<AccountSettings>) {}
@@ -16,6 +16,7 @@ import androidx.preference.*
 import at.bitfire.cert4android.CustomCertManager
 import com.etesync.syncadapter.App
 import com.etesync.syncadapter.BuildConfig
+import com.etesync.syncadapter.HttpClient
 import com.etesync.syncadapter.R
 import com.etesync.syncadapter.model.ServiceDB
 import com.etesync.syncadapter.model.Settings
@@ -85,6 +86,7 @@ class AppSettingsActivity : BaseActivity() {
             prefOverrideProxy.isChecked = settings.getBoolean(App.OVERRIDE_PROXY, false)
             prefOverrideProxy.onPreferenceChangeListener = Preference.OnPreferenceChangeListener { _, newValue ->
                 settings.putBoolean(App.OVERRIDE_PROXY, newValue as Boolean)
+                HttpClient.onSettingsChanged()
                 true
             }
 
@@ -110,6 +112,7 @@ class AppSettingsActivity : BaseActivity() {
                 }
 
                 settings.putString(App.OVERRIDE_PROXY_HOST, host)
+                HttpClient.onSettingsChanged()
                 prefProxyHost.summary = host
                 true
             }
@@ -127,6 +130,7 @@ class AppSettingsActivity : BaseActivity() {
                 }
 
                 settings.putInt(App.OVERRIDE_PROXY_PORT, port)
+                HttpClient.onSettingsChanged()
                 prefProxyPort.text = port.toString()
                 prefProxyPort.summary = port.toString()
                 true
@@ -173,11 +177,14 @@ class AppSettingsActivity : BaseActivity() {
 
         private fun setDistrustSystemCerts(distrust: Boolean) {
             settings.putBoolean(App.DISTRUST_SYSTEM_CERTIFICATES, distrust)
+            HttpClient.onSettingsChanged()
         }
 
         private fun resetCertificates() {
-            if (CustomCertManager.resetCertificates(activity!!))
+            if (CustomCertManager.resetCertificates(activity!!)) {
+                HttpClient.onSettingsChanged()
                 Snackbar.make(view!!, getString(R.string.app_settings_reset_certificates_success), Snackbar.LENGTH_LONG).show()
+            }
         }
 
         private inner class LanguageTask internal constructor(private val mListPreference: ListPreference) : AsyncTask<Void, Void, LanguageUtils.LocaleList>() {
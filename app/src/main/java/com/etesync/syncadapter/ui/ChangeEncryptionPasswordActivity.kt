@@ -17,6 +17,7 @@ import android.view.View
 import androidx.appcompat.app.AlertDialog
 import com.etebase.client.Client
 import com.etesync.syncadapter.AccountSettings
+import com.etesync.syncadapter.EtebaseSessionPool
 import com.etesync.syncadapter.HttpClient
 import com.etesync.syncadapter.R
 import com.etesync.journalmanager.Crypto
@@ -80,6 +81,7 @@ open class ChangeEncryptionPasswordActivity : BaseActivity() {
                 etebase.changePassword(new_password)
 
                 settings.etebaseSession = etebase.save(null)
+                EtebaseSessionPool.invalidate(account.name)
 
                 uiThread {
                     progress.dismiss()
@@ -36,6 +36,8 @@ import com.etesync.syncadapter.model.JournalEntity
 import com.etesync.syncadapter.model.ServiceDB
 import com.etesync.syncadapter.model.ServiceEntity
 import com.etesync.syncadapter.resource.LocalAddressBook
+import com.etesync.syncadapter.syncadapter.SyncBackoff
+import com.etesync.syncadapter.syncadapter.SyncStats
 import org.acra.ACRA
 import org.apache.commons.lang3.exception.ExceptionUtils
 import org.apache.commons.lang3.text.WordUtils
@@ -195,6 +197,30 @@ class DebugInfoActivity : BaseActivity(), LoaderManager.LoaderCallbacks<String>
 
             report.append("\n")
 
+            report.append("NETWORK\n")
+            NetworkMetrics.dump(report)
+            SyncBackoff.dump(report)
+            report.append("\n")
+
+            report.append("LOCAL CACHES\n")
+            for (acct in accountManager.getAccountsByType(context.getString(R.string.account_type)))
+                try {
+                    val settings = AccountSettings(context, acct)
+                    if (!settings.isLegacy) {
+                        val etebase = EtebaseLocalCache.getEtebase(context, settings)
+                        val stats = EtebaseLocalCache.getInstance(context, acct.name).stats(etebase.collectionManager)
+                        report.append("Account: ").append(acct.name).append("\n")
+                        stats.dump(report)
+                    }
+                } catch (e: Exception) {
+                    report.append(acct).append(": couldn't get cache statistics: ").append(e.message).append("\n")
+                }
+            report.append("\n")
+
+            report.append("RECENT SYNCHRONIZATIONS\n")
+            SyncStats.dumpHistory(context, report)
+            report.append("\n")
+
             report.append("SQLITE DUMP\n")
             val dbHelper = ServiceDB.OpenHelper(context)
             dbHelper.dump(report)
@@ -91,8 +91,7 @@ class AccountViewModel : ViewModel() {
         doAsync {
             val settings = AccountSettings(context, account)
             val etebaseLocalCache = EtebaseLocalCache.getInstance(context, account.name)
-            val httpClient = HttpClient.Builder(context).setForeground(true).build().okHttpClient
-            val etebase = EtebaseLocalCache.getEtebase(context, httpClient, settings)
+            val etebase = EtebaseLocalCache.getEtebase(context, settings, foreground = true)
             val colMgr = etebase.collectionManager
             uiThread {
                 holder.value = AccountHolder(
@@ -121,9 +120,8 @@ class CollectionViewModel : ViewModel() {
         doAsync {
             val etebaseLocalCache = accountHolder.etebaseLocalCache
             val colMgr = accountHolder.colMgr
-            val cachedCollection = synchronized(etebaseLocalCache) {
-                etebaseLocalCache.collectionGet(colMgr, colUid)!!
-            }
+            val cachedCollection = etebaseLocalCache.collectionGet(colMgr, colUid)
+            etebaseLocalCache.collectionViewed(colUid)
             uiThread {
                 collection.value = cachedCollection
             }
@@ -138,23 +136,24 @@ class CollectionViewModel : ViewModel() {
 }
 
 class ItemsViewModel : ViewModel() {
-    private val cachedItems = MutableLiveData<List<CachedItem>>()
+    private val cachedItems = MutableLiveData<List<CachedItemInfo>>()
 
     fun loadItems(accountCollectionHolder: AccountHolder, cachedCollection: CachedCollection) {
         doAsync {
             val col = cachedCollection.col
             val itemMgr = accountCollectionHolder.colMgr.getItemManager(col)
-            val items = accountCollectionHolder.etebaseLocalCache.itemList(itemMgr, col.uid, withDeleted = true)
+            // Only the item index is needed for the lists, the items themselves are loaded once opened
+            val items = accountCollectionHolder.etebaseLocalCache.itemInfoList(itemMgr, col.uid, withDeleted = true)
             uiThread {
                 cachedItems.value = items
             }
         }
     }
 
-    fun observe(owner: LifecycleOwner, observer: (List<CachedItem>) -> Unit) =
+    fun observe(owner: LifecycleOwner, observer: (List<CachedItemInfo>) -> Unit) =
             cachedItems.observe(owner, observer)
 
-    val value: List<CachedItem>?
+    val value: List<CachedItemInfo>?
         get() = cachedItems.value
 }
 
@@ -261,9 +261,7 @@ class EditCollectionFragment : Fragment() {
         val etebaseLocalCache = accountHolder.etebaseLocalCache
         val colMgr = accountHolder.colMgr
         colMgr.upload(col)
-        synchronized(etebaseLocalCache) {
-            etebaseLocalCache.collectionSet(colMgr, col)
-        }
+        etebaseLocalCache.collectionSet(colMgr, col)
         collectionModel.loadCollection(model.value!!, col.uid)
     }
 
@@ -15,12 +15,16 @@ import androidx.fragment.app.activityViewModels
 import androidx.fragment.app.commit
 import com.etesync.syncadapter.CachedCollection
 import com.etesync.syncadapter.CachedItem
-import com.etesync.syncadapter.Constants
+import com.etesync.syncadapter.CachedItemInfo
+import com.etesync.syncadapter.EtebaseItemIndex
 import com.etesync.syncadapter.R
+import org.jetbrains.anko.doAsync
+import org.jetbrains.anko.uiThread
 import java.text.SimpleDateFormat
 
 
 class ListEntriesFragment : ListFragment(), AdapterView.OnItemClickListener {
+    private val model: AccountViewModel by activityViewModels()
     private val collectionModel: CollectionViewModel by activityViewModels()
     private val itemsModel: ItemsViewModel by activityViewModels()
     private var state: Parcelable? = null
@@ -45,7 +49,7 @@ class ListEntriesFragment : ListFragment(), AdapterView.OnItemClickListener {
         collectionModel.observe(this) { col ->
             itemsModel.observe(this) {
                 val entries = it.sortedByDescending { item ->
-                    item.meta.mtime ?: 0
+                    item.mtime ?: 0
                 }
                 val listAdapter = EntriesListAdapter(requireContext(), col)
                 setListAdapter(listAdapter)
@@ -69,14 +73,24 @@ class ListEntriesFragment : ListFragment(), AdapterView.OnItemClickListener {
     }
 
     override fun onItemClick(parent: AdapterView<*>, view: View, position: Int, id: Long) {
-        val item = listAdapter?.getItem(position) as CachedItem
-        activity?.supportFragmentManager?.commit {
-            replace(R.id.fragment_container, CollectionItemFragment.newInstance(item))
-            addToBackStack(EditCollectionFragment::class.java.name)
+        val itemInfo = listAdapter?.getItem(position) as CachedItemInfo
+        val accountHolder = model.value ?: return
+        val col = collectionModel.value?.col ?: return
+        doAsync {
+            val itemMgr = accountHolder.colMgr.getItemManager(col)
+            val item = accountHolder.etebaseLocalCache.itemGet(itemMgr, col.uid, itemInfo.uid)
+            uiThread {
+                if (item != null && isAdded) {
+                    activity?.supportFragmentManager?.commit {
+                        replace(R.id.fragment_container, CollectionItemFragment.newInstance(item))
+                        addToBackStack(EditCollectionFragment::class.java.name)
+                    }
+                }
+            }
         }
     }
 
-    internal inner class EntriesListAdapter(context: Context, val cachedCollection: CachedCollection) : ArrayAdapter<CachedItem>(context, R.layout.journal_viewer_list_item) {
+    internal inner class EntriesListAdapter(context: Context, val cachedCollection: CachedCollection) : ArrayAdapter<CachedItemInfo>(context, R.layout.journal_viewer_list_item) {
 
         override fun getView(position: Int, _v: View?, parent: ViewGroup): View {
             var v = _v
@@ -101,48 +115,28 @@ class ListEntriesFragment : ListFragment(), AdapterView.OnItemClickListener {
 
     companion object {
         private val dateFormatter = SimpleDateFormat()
-        private fun getLine(content: String?, prefix: String): String? {
-            var content: String? = content ?: return null
 
-            val start = content!!.indexOf(prefix)
-            if (start >= 0) {
-                val end = content.indexOf("\n", start)
-                content = content.substring(start + prefix.length, end)
-            } else {
-                content = null
-            }
-            return content
+        fun setItemView(v: View, collectionType: String, item: CachedItem) {
+            val info = CachedItemInfo(item.item.uid, item.item.etag, item.item.isDeleted, item.meta.mtime,
+                    if (item.item.isDeleted) null else EtebaseItemIndex.summary(item.content))
+            setItemView(v, collectionType, info)
         }
 
-        fun setItemView(v: View, collectionType: String, item: CachedItem) {
+        fun setItemView(v: View, collectionType: String, item: CachedItemInfo) {
 
             var tv = v.findViewById<View>(R.id.title) as TextView
 
-            // FIXME: hacky way to make it show sensible info
-            val prefix: String = when (collectionType) {
-                Constants.ETEBASE_TYPE_CALENDAR, Constants.ETEBASE_TYPE_TASKS -> {
-                    "SUMMARY:"
-                }
-                Constants.ETEBASE_TYPE_ADDRESS_BOOK -> {
-                    "FN:"
-                }
-                else -> {
-                    ""
-                }
-            }
-
-            val fullContent = item.content
-            var content = getLine(fullContent, prefix)
-            content = content ?: "Not found"
+            // The summary (FN or SUMMARY, depending on the collection type) comes from the item index
+            var content = item.summary ?: "Not found"
             tv.text = content
 
             tv = v.findViewById<View>(R.id.description) as TextView
             // FIXME: Don't use a hard-coded string
-            content = "Modified: ${dateFormatter.format(item.meta.mtime ?: 0)}"
+            content = "Modified: ${dateFormatter.format(item.mtime ?: 0)}"
             tv.text = content
 
             val action = v.findViewById<View>(R.id.action) as ImageView
-            if (item.item.isDeleted) {
+            if (item.isDeleted) {
                 action.setImageResource(R.drawable.action_delete)
             } else {
                 action.setImageResource(R.drawable.action_change)
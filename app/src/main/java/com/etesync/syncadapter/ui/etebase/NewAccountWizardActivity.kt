@@ -204,8 +204,6 @@ class WizardFragment : Fragment() {
         val etebaseLocalCache = accountHolder.etebaseLocalCache
         val colMgr = accountHolder.colMgr
         colMgr.upload(col)
-        synchronized(etebaseLocalCache) {
-            etebaseLocalCache.collectionSet(colMgr, col)
-        }
+        etebaseLocalCache.collectionSet(colMgr, col)
     }
 }
\ No newline at end of file
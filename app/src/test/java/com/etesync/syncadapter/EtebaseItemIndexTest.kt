@@ -0,0 +1,161 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.File
+
+class EtebaseItemIndexTest {
+
+    @Test
+    fun testSummaryOfVCard() {
+        assertEquals("Jane Doe", EtebaseItemIndex.summary("BEGIN:VCARD\r\nVERSION:4.0\r\nFN:Jane Doe\r\nEND:VCARD\r\n"))
+    }
+
+    @Test
+    fun testSummaryOfICalendar() {
+        assertEquals("Meeting", EtebaseItemIndex.summary(
+                "BEGIN:VCALENDAR\r\nBEGIN:VEVENT\r\nUID:1\r\nSUMMARY:Meeting\r\nEND:VEVENT\r\nEND:VCALENDAR\r\n"))
+    }
+
+    @Test
+    fun testSummaryWithParameters() {
+        assertEquals("Jane Doe", EtebaseItemIndex.summary("BEGIN:VCARD\nFN;CHARSET=UTF-8:Jane Doe\nEND:VCARD\n"))
+    }
+
+    @Test
+    fun testSummarySkipsLongerPropertyNames() {
+        assertEquals("Jane", EtebaseItemIndex.summary("BEGIN:VCARD\nFNAME:Other\nFN:Jane\nEND:VCARD\n"))
+        assertNull(EtebaseItemIndex.summary("BEGIN:VCARD\nFNAME:Other\nEND:VCARD\n"))
+    }
+
+    @Test
+    fun testSummaryOfFoldedLine() {
+        assertEquals("A very long summary", EtebaseItemIndex.summary(
+                "BEGIN:VEVENT\r\nSUMMARY:A very lo\r\n ng summary\r\nEND:VEVENT\r\n"))
+        assertEquals("Jane Doe", EtebaseItemIndex.summary("BEGIN:VCARD\nFN:Jane\n\t Doe\nEND:VCARD\n"))
+        // A property name folded in two
+        assertEquals("Jane", EtebaseItemIndex.summary("BEGIN:VCARD\r\nF\r\n N:Jane\r\nEND:VCARD\r\n"))
+    }
+
+    @Test
+    fun testSummaryOnFirstLine() {
+        assertEquals("Jane", EtebaseItemIndex.summary("FN:Jane\nEND:VCARD"))
+        assertEquals("Meeting", EtebaseItemIndex.summary("SUMMARY:Meeting"))
+    }
+
+    @Test
+    fun testSummaryUnescapesValue() {
+        assertEquals("Doe, Jane; Jr. \\", EtebaseItemIndex.summary("FN:Doe\\, Jane\\; Jr. \\\\\n"))
+        assertEquals("Line one line two", EtebaseItemIndex.summary("SUMMARY:Line one\\nline two\n"))
+    }
+
+    @Test
+    fun testSummaryMissingOrEmpty() {
+        assertNull(EtebaseItemIndex.summary("BEGIN:VCARD\nN:Doe;Jane\nEND:VCARD\n"))
+        assertNull(EtebaseItemIndex.summary("BEGIN:VCARD\nFN:  \nEND:VCARD\n"))
+        assertNull(EtebaseItemIndex.summary(""))
+    }
+
+    @Test
+    fun testSummaryIsTruncated() {
+        assertEquals(128, EtebaseItemIndex.summary("FN:" + "x".repeat(500))!!.length)
+    }
+
+    @Test
+    fun testLoadLog() {
+        val file = File.createTempFile("index", null)
+        try {
+            file.writeText("a\tetag1\t0\nb\tetag2\t1\na\n")
+            val index = EtebaseItemIndex.load(file)!!
+            assertEquals(1, index.size)
+            assertNull(index.get("a"))
+            val b = index.get("b")!!
+            assertEquals("etag2", b.etag)
+            assertTrue(b.isDeleted)
+            assertNull(b.mtime)
+            assertNull(b.summary)
+        } finally {
+            file.delete()
+        }
+    }
+
+    @Test
+    fun testLoadDropsLegacySummaries() {
+        val file = File.createTempFile("index", null)
+        try {
+            file.writeText("a\tetag1\t0\t1000\tJane Doe\n")
+            val index = EtebaseItemIndex.load(file)!!
+            val a = index.get("a")!!
+            assertEquals("etag1", a.etag)
+            assertNull(a.mtime)
+            assertNull(a.summary)
+            // The plaintext is removed from the file right away
+            assertEquals("a\tetag1\t0\n", file.readText())
+        } finally {
+            file.delete()
+        }
+    }
+
+    @Test
+    fun testColdListLoadsEveryItemOnce() {
+        val file = File.createTempFile("index", null)
+        try {
+            file.writeText("a\tetag1\t0\nb\tetag2\t0\nc\tetag3\t1\n")
+            val etags = mapOf("a" to "etag1", "b" to "etag2", "c" to "etag3")
+            val loaded = ArrayList<String>()
+            val loader = { uid: String ->
+                loaded += uid
+                EtebaseItemIndex.Details(etags.getValue(uid), 1000, "Summary $uid")
+            }
+
+            // Nothing but the etags is persisted, so the first list after loading the index (e.g. after the app
+            // was started) has to load (decrypt) every item, deleted ones included
+            val index = EtebaseItemIndex.load(file)!!
+            assertNull(index.get("a")!!.summary)
+            val infos = index.listWithDetails(loader)
+            assertEquals(listOf("a", "b", "c"), loaded.sorted())
+            assertEquals("Summary a", infos.first { it.uid == "a" }.summary)
+            assertEquals(1000L, infos.first { it.uid == "b" }.mtime)
+
+            // Afterwards, they are known
+            loaded.clear()
+            index.listWithDetails(loader)
+            assertTrue(loaded.isEmpty())
+            assertEquals("Summary a", index.get("a")!!.summary)
+
+            // ... until the index is loaded again
+            EtebaseItemIndex.load(file)!!.listWithDetails(loader)
+            assertEquals(listOf("a", "b", "c"), loaded.sorted())
+        } finally {
+            file.delete()
+        }
+    }
+
+    @Test
+    fun testListIgnoresDetailsOfOtherRevision() {
+        val file = File.createTempFile("index", null)
+        try {
+            file.writeText("a\tetag1\t0\n")
+            val index = EtebaseItemIndex.load(file)!!
+            // A loader returning an outdated revision doesn't make up a summary for the current one
+            val info = index.listWithDetails { EtebaseItemIndex.Details("etag0", 1000, "Old") }.single()
+            assertNull(info.summary)
+            assertNull(info.mtime)
+        } finally {
+            file.delete()
+        }
+    }
+
+    @Test
+    fun testLoadMissingFile() {
+        assertNull(EtebaseItemIndex.load(File("/nonexistent/index")))
+    }
+}
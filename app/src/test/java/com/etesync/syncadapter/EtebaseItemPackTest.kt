@@ -0,0 +1,189 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter
+
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.io.FileOutputStream
+import java.io.RandomAccessFile
+
+class EtebaseItemPackTest {
+    private lateinit var dir: File
+    private lateinit var file: File
+
+    @Before
+    fun setUp() {
+        dir = createTempDir("pack")
+        file = File(dir, "pack")
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    private fun data(value: String) = value.toByteArray()
+
+    private fun readString(pack: EtebaseItemPack, itemUid: String) = pack.read(itemUid)?.let { String(it) }
+
+    @Test
+    fun testAppendAndRead() {
+        val pack = EtebaseItemPack(file)
+        assertNull(pack.read("a"))
+
+        pack.writeAll(listOf(Pair("a", data("first")), Pair("b", data("second"))))
+        pack.writeAll(listOf(Pair("c", data(""))))
+        assertEquals("first", readString(pack, "a"))
+        assertEquals("second", readString(pack, "b"))
+        assertEquals("", readString(pack, "c"))
+        assertEquals(listOf("first", "second", ""), pack.readAll().map { String(it) })
+        pack.close()
+    }
+
+    @Test
+    fun testOverwriteAndRemove() {
+        val pack = EtebaseItemPack(file)
+        pack.writeAll(listOf(Pair("a", data("first")), Pair("b", data("second"))))
+        pack.writeAll(listOf(Pair("a", data("changed")), Pair("b", null)))
+        assertEquals("changed", readString(pack, "a"))
+        assertNull(pack.read("b"))
+        pack.close()
+
+        val reopened = EtebaseItemPack(file)
+        assertEquals("changed", readString(reopened, "a"))
+        assertNull(reopened.read("b"))
+        assertEquals(1, reopened.readAll().size)
+        reopened.close()
+    }
+
+    @Test
+    fun testCompact() {
+        val pack = EtebaseItemPack(file)
+        pack.writeAll(listOf(Pair("a", data("first")), Pair("b", data("second"))))
+        pack.writeAll(listOf(Pair("a", data("changed")), Pair("b", null)))
+        val sizeBefore = file.length()
+        pack.compact()
+        assertTrue(file.length() < sizeBefore)
+        assertEquals("changed", readString(pack, "a"))
+        assertNull(pack.read("b"))
+
+        // Still appendable after compaction
+        pack.writeAll(listOf(Pair("c", data("third"))))
+        pack.close()
+        val reopened = EtebaseItemPack(file)
+        assertEquals("changed", readString(reopened, "a"))
+        assertEquals("third", readString(reopened, "c"))
+        reopened.close()
+    }
+
+    @Test
+    fun testReadsAcrossSegments() {
+        val values = (0 until 20).map { i -> Pair("item$i", ByteArray(7 + i) { (it + i).toByte() }) }
+        val pack = EtebaseItemPack(file, segmentSize = 16)
+        // Appended in several steps, so the partially mapped last segment grows
+        for (chunk in values.chunked(3)) {
+            pack.writeAll(chunk)
+            for ((uid, value) in chunk) {
+                assertArrayEquals(value, pack.read(uid))
+            }
+        }
+        pack.close()
+
+        val reopened = EtebaseItemPack(file, segmentSize = 16)
+        for ((uid, value) in values) {
+            assertArrayEquals(value, reopened.read(uid))
+        }
+        reopened.close()
+    }
+
+    @Test
+    fun testTruncatesTornRecord() {
+        val pack = EtebaseItemPack(file)
+        pack.writeAll(listOf(Pair("a", data("first"))))
+        pack.close()
+        val validSize = file.length()
+
+        // A second record of which only a part made it to disk
+        val other = File(dir, "other")
+        EtebaseItemPack(other).apply {
+            writeAll(listOf(Pair("b", data("second"))))
+            close()
+        }
+        val record = other.readBytes().copyOfRange(8, other.length().toInt())
+        FileOutputStream(file, true).use { it.write(record, 0, record.size - 3) }
+
+        val reopened = EtebaseItemPack(file)
+        assertEquals("first", readString(reopened, "a"))
+        assertNull(reopened.read("b"))
+        assertEquals(validSize, file.length())
+
+        // Appending continues right after the last valid record
+        reopened.writeAll(listOf(Pair("c", data("third"))))
+        reopened.close()
+        val again = EtebaseItemPack(file)
+        assertEquals("first", readString(again, "a"))
+        assertEquals("third", readString(again, "c"))
+        again.close()
+    }
+
+    @Test
+    fun testTruncatesZeroFilledTail() {
+        val pack = EtebaseItemPack(file)
+        pack.writeAll(listOf(Pair("a", data("first"))))
+        pack.close()
+        val validSize = file.length()
+
+        // The file system extended the file, but the data never made it to disk
+        RandomAccessFile(file, "rw").use { it.setLength(validSize + 100) }
+
+        val reopened = EtebaseItemPack(file)
+        assertEquals("first", readString(reopened, "a"))
+        assertEquals(1, reopened.readAll().size)
+        assertEquals(validSize, file.length())
+        reopened.close()
+    }
+
+    @Test
+    fun testTruncatesCorruptedRecord() {
+        val pack = EtebaseItemPack(file)
+        pack.writeAll(listOf(Pair("a", data("first"))))
+        pack.writeAll(listOf(Pair("b", data("second"))))
+        pack.close()
+
+        // Flip a byte of the data of the last record
+        RandomAccessFile(file, "rw").use {
+            it.seek(file.length() - 6)
+            val b = it.read()
+            it.seek(file.length() - 6)
+            it.write(b xor 0xff)
+        }
+
+        val reopened = EtebaseItemPack(file)
+        assertEquals("first", readString(reopened, "a"))
+        assertNull(reopened.read("b"))
+        reopened.close()
+    }
+
+    @Test
+    fun testDiscardsUnknownFormat() {
+        file.writeBytes(ByteArray(64) { 1 })
+        val pack = EtebaseItemPack(file)
+        assertTrue(pack.readAll().isEmpty())
+        assertEquals(0, file.length())
+
+        pack.writeAll(listOf(Pair("a", data("first"))))
+        pack.close()
+        val reopened = EtebaseItemPack(file)
+        assertEquals("first", readString(reopened, "a"))
+        reopened.close()
+    }
+}
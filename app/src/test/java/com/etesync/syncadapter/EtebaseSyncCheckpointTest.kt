@@ -0,0 +1,97 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter
+
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+
+class EtebaseSyncCheckpointTest {
+    private lateinit var dir: File
+    private lateinit var file: File
+
+    @Before
+    fun setUp() {
+        dir = createTempDir("checkpoint")
+        file = File(File(dir, "collection"), "checkpoint")
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    @Test
+    fun testResumesInterruptedPage() {
+        val checkpoint = EtebaseSyncCheckpoint(file)
+        checkpoint.begin("stoken1")
+        checkpoint.markApplied(mapOf("a" to "etag1", "b" to "etag2"))
+        checkpoint.markApplied(mapOf("c" to "etag3"))
+
+        // The sync is interrupted and the same page is fetched again
+        val resumed = EtebaseSyncCheckpoint(file)
+        resumed.begin("stoken1")
+        assertEquals(3, resumed.size)
+        assertTrue(resumed.isApplied("a", "etag1"))
+        assertTrue(resumed.isApplied("c", "etag3"))
+        assertFalse(resumed.isApplied("d", "etag4"))
+        // The item changed since it was applied
+        assertFalse(resumed.isApplied("b", "etag5"))
+    }
+
+    @Test
+    fun testOtherPageStartsOver() {
+        val checkpoint = EtebaseSyncCheckpoint(file)
+        checkpoint.begin("stoken1")
+        checkpoint.markApplied(mapOf("a" to "etag1"))
+
+        val resumed = EtebaseSyncCheckpoint(file)
+        resumed.begin("stoken2")
+        assertEquals(0, resumed.size)
+        assertFalse(resumed.isApplied("a", "etag1"))
+
+        // ... and the new page is what is resumed afterwards
+        resumed.markApplied(mapOf("b" to "etag2"))
+        val again = EtebaseSyncCheckpoint(file)
+        again.begin("stoken2")
+        assertTrue(again.isApplied("b", "etag2"))
+        assertFalse(again.isApplied("a", "etag1"))
+    }
+
+    @Test
+    fun testFirstPageHasNoStoken() {
+        val checkpoint = EtebaseSyncCheckpoint(file)
+        checkpoint.begin(null)
+        checkpoint.markApplied(mapOf("a" to "etag1"))
+
+        val resumed = EtebaseSyncCheckpoint(file)
+        resumed.begin(null)
+        assertTrue(resumed.isApplied("a", "etag1"))
+
+        val other = EtebaseSyncCheckpoint(file)
+        other.begin("stoken1")
+        assertFalse(other.isApplied("a", "etag1"))
+    }
+
+    @Test
+    fun testCompleteRemovesCheckpoint() {
+        val checkpoint = EtebaseSyncCheckpoint(file)
+        checkpoint.begin("stoken1")
+        checkpoint.markApplied(mapOf("a" to "etag1"))
+        checkpoint.complete()
+        assertFalse(file.exists())
+        assertEquals(0, checkpoint.size)
+
+        val next = EtebaseSyncCheckpoint(file)
+        next.begin("stoken1")
+        assertFalse(next.isApplied("a", "etag1"))
+    }
+}
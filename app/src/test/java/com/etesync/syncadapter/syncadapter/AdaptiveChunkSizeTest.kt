@@ -0,0 +1,81 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter.syncadapter
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class AdaptiveChunkSizeTest {
+
+    @Test
+    fun testInitialSizeWithinBounds() {
+        assertEquals(10, AdaptiveChunkSize(10, 100, 5).current)
+        assertEquals(100, AdaptiveChunkSize(10, 100, 500).current)
+        assertEquals(50, AdaptiveChunkSize(10, 100, 50).current)
+    }
+
+    @Test
+    fun testGrowsOnFastFullRequests() {
+        val size = AdaptiveChunkSize(10, 100, 20, targetMillis = 1000)
+        size.onRoundTrip(20, 100)
+        assertEquals(40, size.current)
+        size.onRoundTrip(40, 100)
+        size.onRoundTrip(80, 100)
+        assertEquals(100, size.current)
+    }
+
+    @Test
+    fun testDoesntGrowOnShortRequests() {
+        val size = AdaptiveChunkSize(10, 100, 20, targetMillis = 1000)
+        size.onRoundTrip(5, 100)
+        assertEquals(20, size.current)
+    }
+
+    @Test
+    fun testShrinksOnSlowRequests() {
+        val size = AdaptiveChunkSize(10, 100, 80, targetMillis = 1000)
+        size.onRoundTrip(80, 2500)
+        assertEquals(40, size.current)
+        // within twice the target: unchanged
+        size.onRoundTrip(40, 1500)
+        assertEquals(40, size.current)
+        size.onRoundTrip(40, 5000)
+        size.onRoundTrip(20, 5000)
+        assertEquals(10, size.current)
+    }
+
+    @Test
+    fun testCappedByPayload() {
+        val size = AdaptiveChunkSize(1, 100, 50, targetBytes = 1000, targetMillis = 1000)
+        assertEquals(0, size.averageItemBytes)
+
+        size.onPayload(10, 1000)
+        assertEquals(100, size.averageItemBytes)
+        assertEquals(10, size.current)
+
+        // fast requests don't grow it beyond the payload cap
+        size.onRoundTrip(10, 100)
+        assertEquals(10, size.current)
+    }
+
+    @Test
+    fun testPayloadCapRespectsMinimum() {
+        val size = AdaptiveChunkSize(5, 100, 50, targetBytes = 1000)
+        size.onPayload(1, 10000)
+        assertEquals(5, size.current)
+    }
+
+    @Test
+    fun testEmptyPayloadIgnored() {
+        val size = AdaptiveChunkSize(1, 100, 50, targetBytes = 1000)
+        size.onPayload(0, 1000)
+        assertEquals(0, size.averageItemBytes)
+        assertEquals(50, size.current)
+    }
+}
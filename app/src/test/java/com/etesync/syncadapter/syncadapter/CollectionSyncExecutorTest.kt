@@ -0,0 +1,88 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter.syncadapter
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.IOException
+import java.util.*
+
+class CollectionSyncExecutorTest {
+    /** stands in for SyncResult, which is just a stub in unit tests */
+    private class Result {
+        val synced: MutableList<String> = Collections.synchronizedList(ArrayList<String>())
+        var cancelled = false
+    }
+
+    private fun syncAll(concurrency: Int, collections: List<String>, result: Result, sync: (String, Result) -> Unit) {
+        CollectionSyncExecutor(concurrency).syncAll(collections, result, { Result() },
+                { into, from -> into.synced += from.synced }, { it.cancelled = true }, sync)
+    }
+
+    @Test
+    fun testSequentialFailureStopsSync() {
+        val result = Result()
+        try {
+            syncAll(1, listOf("a", "b", "c"), result) { collection, collectionResult ->
+                if (collection == "b") {
+                    throw IOException("b failed")
+                }
+                collectionResult.synced += collection
+            }
+            fail()
+        } catch (e: IOException) {
+            assertEquals("b failed", e.message)
+        }
+        assertEquals(listOf("a"), result.synced)
+    }
+
+    @Test
+    fun testConcurrentFailureIsRethrownAfterAllCollections() {
+        val result = Result()
+        try {
+            syncAll(3, listOf("a", "b", "c", "d", "e"), result) { collection, collectionResult ->
+                collectionResult.synced += collection
+                if (collection == "b" || collection == "d") {
+                    throw IOException("$collection failed")
+                }
+            }
+            fail()
+        } catch (e: IOException) {
+            // The first failure in the order of the collections is thrown as it is, not wrapped
+            assertEquals("b failed", e.message)
+        }
+        // The other collections were finished, and the results of the failed ones merged too
+        assertEquals(listOf("a", "b", "c", "d", "e"), result.synced.sorted())
+        assertFalse(result.cancelled)
+    }
+
+    @Test
+    fun testConcurrentErrorIsRethrown() {
+        val result = Result()
+        try {
+            syncAll(2, listOf("a", "b"), result) { collection, _ ->
+                if (collection == "a") {
+                    throw IllegalStateException("a failed")
+                }
+            }
+            fail()
+        } catch (e: IllegalStateException) {
+            assertEquals("a failed", e.message)
+        }
+    }
+
+    @Test
+    fun testConcurrentSuccessMergesResults() {
+        val result = Result()
+        syncAll(4, listOf("a", "b", "c"), result) { collection, collectionResult ->
+            collectionResult.synced += collection
+        }
+        assertEquals(listOf("a", "b", "c"), result.synced.sorted())
+    }
+}
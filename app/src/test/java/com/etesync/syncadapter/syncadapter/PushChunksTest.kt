@@ -0,0 +1,67 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter.syncadapter
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class PushChunksTest {
+
+    /**
+     * Runs the push loop of SyncManager over [dirty] local changes: every chunk takes up to the next of [limits]
+     * changes that aren't being uploaded already, and the previous chunk is only marked as clean once the next one
+     * was created. Returns the sizes of the created chunks.
+     */
+    private fun push(dirty: Int, vararg limits: Int): List<Int> {
+        val remaining = (0 until dirty).toMutableList()
+        var uploading = emptyList<Int>()
+        val chunks = ArrayList<Int>()
+        var round = 0
+        do {
+            val limit = limits[Math.min(round++, limits.size - 1)]
+            val chunk = remaining.filter { it !in uploading }.take(limit)
+            remaining.removeAll(uploading)
+            uploading = chunk
+            chunks += chunk.size
+            assertTrue("push loop doesn't terminate", round <= dirty + 1)
+        } while (SyncManager.hasMorePushChunks(chunk.size, limit))
+        remaining.removeAll(uploading)
+
+        assertTrue(remaining.isEmpty())
+        return chunks
+    }
+
+    @Test
+    fun testNothingToPush() {
+        assertEquals(listOf(0), push(0, 30))
+    }
+
+    @Test
+    fun testSingleChunk() {
+        assertEquals(listOf(10), push(10, 30))
+    }
+
+    @Test
+    fun testFullChunksContinue() {
+        assertEquals(listOf(30, 30, 5), push(65, 30))
+    }
+
+    @Test
+    fun testExactMultipleEndsWithEmptyChunk() {
+        // A full last chunk can't tell whether there are more changes, so one more (empty) chunk is created
+        assertEquals(listOf(30, 30, 0), push(60, 30))
+    }
+
+    @Test
+    fun testAdaptedLimits() {
+        // The limit changes between chunks; every chunk is compared to the limit it was created with
+        assertEquals(listOf(10, 20, 20), push(50, 10, 20, 40))
+        assertEquals(listOf(40, 5, 5, 0), push(50, 40, 5))
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter.syncadapter
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class SingleFlightCacheTest {
+
+    @Test
+    fun testReusesLoadedValue() {
+        val cache = SingleFlightCache<String>(60 * 1000)
+        val loads = AtomicInteger()
+        assertEquals("value1", cache.get("key") { "value" + loads.incrementAndGet() })
+        assertEquals("value1", cache.get("key") { "value" + loads.incrementAndGet() })
+        assertEquals(1, loads.get())
+
+        // Keys are independent
+        assertEquals("value2", cache.get("other") { "value" + loads.incrementAndGet() })
+    }
+
+    @Test
+    fun testCoalescesConcurrentLoads() {
+        val cache = SingleFlightCache<Int>(60 * 1000)
+        val loads = AtomicInteger()
+        val loading = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            val first = executor.submit<Int> {
+                cache.get("key") {
+                    loading.countDown()
+                    release.await()
+                    loads.incrementAndGet()
+                }
+            }
+            assertTrue(loading.await(5, TimeUnit.SECONDS))
+
+            val others = (0 until 3).map {
+                executor.submit<Int> { cache.get("key") { loads.incrementAndGet() } }
+            }
+            Thread.sleep(100)
+            release.countDown()
+
+            assertEquals(1, first.get(5, TimeUnit.SECONDS))
+            for (other in others) {
+                assertEquals(1, other.get(5, TimeUnit.SECONDS))
+            }
+            assertEquals(1, loads.get())
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    @Test
+    fun testReloadsWhenExpired() {
+        val cache = SingleFlightCache<Int>(50)
+        val loads = AtomicInteger()
+        assertEquals(1, cache.get("key") { loads.incrementAndGet() })
+        Thread.sleep(100)
+        assertEquals(2, cache.get("key") { loads.incrementAndGet() })
+        assertEquals(2, cache.get("key") { loads.incrementAndGet() })
+    }
+
+    @Test
+    fun testReloadsWhenInvalid() {
+        val cache = SingleFlightCache<Int>(60 * 1000)
+        val loads = AtomicInteger()
+        assertEquals(1, cache.get("key") { loads.incrementAndGet() })
+        assertEquals(1, cache.get("key", { it == 1 }) { loads.incrementAndGet() })
+        assertEquals(2, cache.get("key", { it == 3 }) { loads.incrementAndGet() })
+    }
+
+    @Test
+    fun testReloadsWhenInvalidated() {
+        val cache = SingleFlightCache<Int>(60 * 1000)
+        val loads = AtomicInteger()
+        cache.get("key") { loads.incrementAndGet() }
+        cache.get("other") { loads.incrementAndGet() }
+
+        cache.invalidate("key")
+        assertEquals(3, cache.get("key") { loads.incrementAndGet() })
+        assertEquals(2, cache.get("other") { loads.incrementAndGet() })
+
+        cache.invalidateAll()
+        assertEquals(4, cache.get("key") { loads.incrementAndGet() })
+        assertEquals(5, cache.get("other") { loads.incrementAndGet() })
+    }
+
+    @Test
+    fun testFailedLoadIsntKept() {
+        val cache = SingleFlightCache<Int>(60 * 1000)
+        try {
+            cache.get("key") { throw IOException("failed") }
+            fail()
+        } catch (e: IOException) {
+            // the cause of the failure is thrown, not a wrapper
+            assertEquals("failed", e.message)
+        }
+        assertEquals(1, cache.get("key") { 1 })
+    }
+
+    @Test
+    fun testFailedLoadFailsAllWaitingCallers() {
+        val cache = SingleFlightCache<Int>(60 * 1000)
+        val loading = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val executor = Executors.newFixedThreadPool(2)
+        try {
+            val first = executor.submit<Int> {
+                cache.get("key") {
+                    loading.countDown()
+                    release.await()
+                    throw IOException("failed")
+                }
+            }
+            assertTrue(loading.await(5, TimeUnit.SECONDS))
+            val second = executor.submit<Int> { cache.get("key") { 2 } }
+            Thread.sleep(100)
+            release.countDown()
+
+            for (future in listOf(first, second)) {
+                try {
+                    future.get(5, TimeUnit.SECONDS)
+                    fail()
+                } catch (e: ExecutionException) {
+                    assertTrue(e.cause is IOException)
+                }
+            }
+            // Neither of them left the failed entry behind
+            assertEquals(3, cache.get("key") { 3 })
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    @Test
+    fun testValidityCheckDoesntBlockOtherKeys() {
+        val cache = SingleFlightCache<Int>(60 * 1000)
+        cache.get("key") { 1 }
+
+        val executor = Executors.newSingleThreadExecutor()
+        try {
+            // A slow validity check (e.g. reading a file) doesn't hold up the callers of other keys
+            val value = cache.get("key", {
+                executor.submit<Int> { cache.get("other") { 2 } }.get(5, TimeUnit.SECONDS) == 2
+            }) { 3 }
+            assertEquals(1, value)
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright © Ricki Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ */
+
+package com.etesync.syncadapter.syncadapter
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+
+class SyncBackoffTest {
+    // SyncBackoff keeps its state in a singleton, so every test uses accounts and servers of its own
+    private val account = "account-" + UUID.randomUUID()
+    private val server = "server-" + UUID.randomUUID()
+
+    private val start = 1600000000000L
+    private val minute = 60 * 1000L
+
+    /** returns the delay of a failure at [now] in seconds from [now] */
+    private fun fail(now: Long, accountName: String = account, server: String? = this.server, retryAfter: Long = 0): Long {
+        return SyncBackoff.onFailure(accountName, server, retryAfter, now) - now / 1000
+    }
+
+    private fun assertDelay(min: Long, max: Long, delay: Long) {
+        assertTrue("$delay s not within $min..$max s", delay in min..max)
+    }
+
+    @Test
+    fun testReturnsPointInTime() {
+        val until = SyncBackoff.onFailure(account, server, 0, start)
+        assertDelay(start / 1000 + 150, start / 1000 + 300, until)
+    }
+
+    @Test
+    fun testGrowsExponentially() {
+        assertDelay(150, 300, fail(start))
+        assertDelay(300, 600, fail(start + 10 * minute))
+        assertDelay(600, 1200, fail(start + 20 * minute))
+        assertDelay(1200, 2400, fail(start + 30 * minute, server = null))
+    }
+
+    @Test
+    fun testIsCapped() {
+        var delay = 0L
+        for (i in 0 until 30) {
+            delay = fail(start + i * 10 * minute, server = null)
+        }
+        assertDelay(3 * 3600, 6 * 3600, delay)
+    }
+
+    @Test
+    fun testJitter() {
+        val delays = (0 until 20).map { fail(start, accountName = "jitter-$it-$account", server = null) }
+        for (delay in delays) {
+            assertDelay(150, 300, delay)
+        }
+        assertTrue(delays.distinct().size > 1)
+    }
+
+    @Test
+    fun testCloseFailuresCountOnce() {
+        assertDelay(150, 300, fail(start))
+        // e.g. the other authorities of the same account failing right after
+        assertDelay(150, 300, fail(start + 1000))
+        assertDelay(150, 300, fail(start + 30 * 1000))
+        assertDelay(300, 600, fail(start + 2 * minute))
+    }
+
+    @Test
+    fun testHonorsRetryAfter() {
+        assertDelay(3600, 3960, fail(start, retryAfter = 3600))
+        // A shorter hint doesn't shorten the backoff
+        assertDelay(300, 600, fail(start + 10 * minute, retryAfter = 10))
+    }
+
+    @Test
+    fun testCapsRetryAfter() {
+        assertDelay(24 * 3600, 24 * 3600 * 11 / 10, fail(start, retryAfter = 30 * 24 * 3600))
+    }
+
+    @Test
+    fun testServerFailuresAffectOtherAccounts() {
+        fail(start)
+        fail(start + 10 * minute)
+        // Another account of the same server starts with the server's backoff
+        assertDelay(600, 1200, fail(start + 20 * minute, accountName = "other-$account"))
+    }
+
+    @Test
+    fun testCircuitOpensAtThreshold() {
+        for (i in 0 until 3) {
+            fail(start + i * 10 * minute)
+            assertEquals(0, SyncBackoff.circuitOpenUntil(server, start + i * 10 * minute))
+        }
+
+        val now = start + 30 * minute
+        val until = SyncBackoff.onFailure(account, server, 0, now)
+        assertEquals(until, SyncBackoff.circuitOpenUntil(server, now))
+        assertEquals(until, SyncBackoff.circuitOpenUntil(server, now + minute))
+
+        // Closed again once the delay elapsed, so the next sync tries again
+        assertEquals(0, SyncBackoff.circuitOpenUntil(server, until * 1000))
+    }
+
+    @Test
+    fun testCircuitOfUnknownServer() {
+        assertEquals(0, SyncBackoff.circuitOpenUntil(server, start))
+        assertEquals(0, SyncBackoff.circuitOpenUntil(null, start))
+    }
+
+    @Test
+    fun testSuccessResets() {
+        for (i in 0 until 4) {
+            fail(start + i * 10 * minute)
+        }
+        assertTrue(SyncBackoff.circuitOpenUntil(server, start + 30 * minute) > 0)
+
+        SyncBackoff.onSuccess(account, server)
+        assertEquals(0, SyncBackoff.circuitOpenUntil(server, start + 30 * minute))
+        assertDelay(150, 300, fail(start + 40 * minute))
+    }
+
+    @Test
+    fun testSurvivesRestart() {
+        for (i in 0 until 4) {
+            fail(start + i * 10 * minute)
+        }
+        val (accountState, serverState) = SyncBackoff.persisted(account, server)
+        assertNotNull(accountState)
+        assertTrue(serverState!!.startsWith("$server "))
+        val openUntil = SyncBackoff.circuitOpenUntil(server, start + 30 * minute)
+
+        // A restart of the app loses what's in memory (like a success does)
+        SyncBackoff.onSuccess(account, server)
+        assertEquals(Pair<String?, String?>(null, null), SyncBackoff.persisted(account, server))
+
+        SyncBackoff.restore(account, accountState, server, serverState, start + 31 * minute)
+        assertEquals(openUntil, SyncBackoff.circuitOpenUntil(server, start + 31 * minute))
+        assertDelay(2400, 4800, fail(start + 40 * minute))
+    }
+
+    @Test
+    fun testRestoreIgnoresOtherServerAndOutdatedState() {
+        fail(start)
+        fail(start + 10 * minute)
+        val (accountState, serverState) = SyncBackoff.persisted(account, server)
+        SyncBackoff.onSuccess(account, server)
+
+        // The account moved to another server
+        val otherServer = "other-$server"
+        SyncBackoff.restore(account, null, otherServer, serverState, start + 11 * minute)
+        assertEquals(Pair<String?, String?>(null, null), SyncBackoff.persisted(account, otherServer))
+
+        // Nothing failed for more than a day
+        SyncBackoff.restore(account, accountState, server, serverState, start + 25 * 60 * minute)
+        assertEquals(Pair<String?, String?>(null, null), SyncBackoff.persisted(account, server))
+
+        // Garbage
+        SyncBackoff.restore(account, "1 2", server, "$server x y z w", start)
+        assertEquals(Pair<String?, String?>(null, null), SyncBackoff.persisted(account, server))
+    }
+}